@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures {@link UnreadAggregator} with synthetic accounts.
+ *
+ * <p>Run with {@code -prof gc} to see the allocation rate per operation.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnreadAggregatorBenchmark {
+    @Param({ "1", "10", "100", "1000", "10000" })
+    public int accountCount;
+
+    /**
+     * Percentage of accounts enabled in the settings. {@code 100} means the user didn't change
+     * the default.
+     */
+    @Param({ "100", "50" })
+    public int enabledPercentage;
+
+    private List<Account> mAccounts;
+    private Set<String> mEnabledAccountUuids;
+    private List<Account> mDisplayedAccounts;
+    private int[] mUnreadCounts;
+    private UnreadAggregator mAggregator;
+    private UnreadAggregator.LineFormatter mFormatter;
+
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+
+        mAccounts = new ArrayList<Account>(accountCount);
+        // null is the default, i.e. the user never changed the account selection
+        mEnabledAccountUuids = (enabledPercentage >= 100) ? null : new HashSet<String>();
+        for (int i = 0; i < accountCount; i++) {
+            String uuid = "00000000-0000-0000-0000-" + String.format(Locale.US, "%012d", i);
+            mAccounts.add(new Account(i, "Account " + i, uuid, random.nextInt()));
+
+            if (mEnabledAccountUuids != null && random.nextInt(100) < enabledPercentage) {
+                mEnabledAccountUuids.add(uuid);
+            }
+        }
+
+        mDisplayedAccounts = UnreadAggregator.filter(mAccounts, mEnabledAccountUuids);
+        mUnreadCounts = new int[mDisplayedAccounts.size()];
+        for (int i = 0; i < mUnreadCounts.length; i++) {
+            // Roughly a third of the accounts without unread messages
+            mUnreadCounts[i] = Math.max(0, random.nextInt(150) - 50);
+        }
+
+        mAggregator = new UnreadAggregator();
+
+        // Same output as the precompiled default format "%1$s (%2$d)" in UnreadRenderer
+        mFormatter = new UnreadAggregator.LineFormatter() {
+            @Override
+            public void appendLine(StringBuilder body, String accountName, int unreadCount,
+                    boolean stale) {
+                body.append(accountName).append(" (").append(unreadCount).append(')');
+            }
+        };
+    }
+
+    @Benchmark
+    public List<Account> filter() {
+        return UnreadAggregator.filter(mAccounts, mEnabledAccountUuids);
+    }
+
+    @Benchmark
+    public UnreadAggregator.Summary aggregate() {
+        return mAggregator.aggregate(mDisplayedAccounts, mUnreadCounts, null, mFormatter);
+    }
+
+    @Benchmark
+    public UnreadAggregator.Summary filterAndAggregate() {
+        List<Account> displayedAccounts = UnreadAggregator.filter(mAccounts,
+                mEnabledAccountUuids);
+        return mAggregator.aggregate(displayedAccounts, mUnreadCounts, null, mFormatter);
+    }
+}
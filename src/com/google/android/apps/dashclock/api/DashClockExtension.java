@@ -20,14 +20,36 @@ import com.google.android.apps.dashclock.api.internal.IExtension;
 import com.google.android.apps.dashclock.api.internal.IExtensionHost;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.os.Binder;
+import android.os.CancellationSignal;
+import android.os.DeadObjectException;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Process;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Base class for a DashClock extension. Extensions are a way for other apps to show additional
@@ -174,11 +196,210 @@ public abstract class DashClockExtension extends Service {
     public static final String PERMISSION_READ_EXTENSION_DATA
             = "com.google.android.apps.dashclock.permission.READ_EXTENSION_DATA";
 
-    private boolean mInitialized = false;
-    private IExtensionHost mHost;
+    /**
+     * The order in which pending updates are processed. Updates the user is waiting for come
+     * first.
+     */
+    private static final int[] UPDATE_REASON_PRIORITY = {
+            UPDATE_REASON_INITIAL,
+            UPDATE_REASON_SCREEN_ON,
+            UPDATE_REASON_SETTINGS_CHANGED,
+            UPDATE_REASON_CONTENT_CHANGED,
+            UPDATE_REASON_PERIODIC,
+            UPDATE_REASON_UNKNOWN,
+    };
+
+    private static final int UPDATE_REASON_COUNT = UPDATE_REASON_PRIORITY.length;
+
+    /**
+     * Time in seconds after which the idle publisher thread is terminated.
+     */
+    private static final long PUBLISH_THREAD_KEEP_ALIVE = 30;
+
+    /**
+     * Default time in milliseconds after which the idle update thread is terminated. See
+     * {@link #setWorkerIdleTimeout(long)}.
+     */
+    public static final long DEFAULT_WORKER_IDLE_TIMEOUT = 60 * 1000;
+
+    /**
+     * Data waiting to be sent to the hosts by the publisher thread.
+     */
+    private static final class Publication {
+        final ExtensionData data;
+        final long enqueueTime;
+
+        Publication(ExtensionData data, long enqueueTime) {
+            this.data = data;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+
+    /**
+     * A connected host. Removes itself when the host's process dies. Also removed when all hosts
+     * unbind, or when the same UID connects with a new binder.
+     */
+    private final class HostRecord implements IBinder.DeathRecipient {
+        final IExtensionHost host;
+        final IBinder binder;
+        final int uid;
+
+        HostRecord(IExtensionHost host, int uid) {
+            this.host = host;
+            this.binder = host.asBinder();
+            this.uid = uid;
+        }
+
+        @Override
+        public void binderDied() {
+            removeHost(this);
+        }
+    }
+
+    /**
+     * Set once {@link #onInitialize(boolean)} has returned. Written while holding
+     * {@link #mHostLock}, so that it's called only once even if several hosts connect at the same
+     * time.
+     */
+    private volatile boolean mInitialized = false;
+
+    /**
+     * All connected hosts. Modifications are guarded by {@link #mHostLock}, so that a new host
+     * receives the settings made by {@link #addWatchContentUris(String[])} and
+     * {@link #setUpdateWhenScreenOn(boolean)} exactly once.
+     */
+    private final CopyOnWriteArrayList<HostRecord> mHosts = new CopyOnWriteArrayList<HostRecord>();
+    private final Object mHostLock = new Object();
+    private final List<String> mWatchContentUris = new ArrayList<String>();
+    private Boolean mUpdateWhenScreenOn = null;
+
+    /**
+     * Copy of the data last handed to the publisher (before {@link ExtensionData#clean()}). Only
+     * valid if {@link #mHasPublishedData} is {@code true}. Guarded by {@link #mPublishLock}.
+     */
+    private ExtensionData mLastPublishedData;
+    private boolean mHasPublishedData = false;
+
+    /**
+     * Generation (see {@link #mGeneration}) of the update whose data was published last. Guarded
+     * by {@link #mPublishLock}.
+     */
+    private long mPublishedGeneration = 0;
+    private final Object mPublishLock = new Object();
+
+    /**
+     * Single-slot mailbox for the publisher thread. A publication that wasn't sent yet is
+     * replaced by a newer one.
+     */
+    private final AtomicReference<Publication> mPendingPublication =
+            new AtomicReference<Publication>();
+    private ThreadPoolExecutor mPublishExecutor;
+    private final Runnable mPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Publication publication;
+            while ((publication = mPendingPublication.getAndSet(null)) != null) {
+                deliver(publication);
+            }
+        }
+    };
+
+    private final UpdateMetrics mMetrics = new UpdateMetrics();
+    private final AtomicLong[] mUpdateReasonCounters = new AtomicLong[] {
+            mMetrics.counter("update_reason_unknown"),
+            mMetrics.counter("update_reason_initial"),
+            mMetrics.counter("update_reason_periodic"),
+            mMetrics.counter("update_reason_settings_changed"),
+            mMetrics.counter("update_reason_content_changed"),
+            mMetrics.counter("update_reason_screen_on"),
+    };
+    private final AtomicLong mSkippedPublishCounter = mMetrics.counter("publish_skipped");
+    private final AtomicLong mSupersededPublishCounter =
+            mMetrics.counter("publish_superseded");
+    private final AtomicLong mCollapsedUpdateCounter = mMetrics.counter("update_collapsed");
+    private final AtomicLong mPermissionCheckCounter = mMetrics.counter("permission_checks");
+    private final AtomicLong mReplacedPublishCounter = mMetrics.counter("publish_replaced");
+    private final AtomicLong mFailedPublishCounter = mMetrics.counter("publish_failed");
+    private final AtomicLong mWorkerStartCounter = mMetrics.counter("worker_started");
+    private final UpdateMetrics.Histogram mQueueWaitHistogram = mMetrics.histogram("queue_wait");
+    private final UpdateMetrics.Histogram mUpdateHistogram = mMetrics.histogram("update");
+    private final UpdateMetrics.Histogram mPublishHistogram =
+            mMetrics.histogram("publish_binder");
+    private final UpdateMetrics.Histogram mPublishLatencyHistogram =
+            mMetrics.histogram("publish_latency");
+
+    /**
+     * UIDs of callers that were found to hold {@link #PERMISSION_READ_EXTENSION_DATA}. Only
+     * positive results are cached. Cleared whenever a package is installed, changed or removed.
+     * Guarded by itself.
+     */
+    private final SparseBooleanArray mPermittedUids = new SparseBooleanArray();
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The caller might have been uninstalled (and its UID reused), or the app defining
+            // the permission might have changed
+            synchronized (mPermittedUids) {
+                mPermittedUids.clear();
+            }
+        }
+    };
 
+    /**
+     * The update thread is started by the first update request and terminated after it was idle
+     * for {@link #mWorkerIdleTimeout} milliseconds. Guarded by {@link #mQueueLock}; the looper is
+     * also read without holding the lock to find out whether we're running on the update thread.
+     */
     private volatile Looper mServiceLooper;
-    private volatile Handler mServiceHandler;
+    private Handler mServiceHandler;
+    private long mWorkerIdleTimeout = DEFAULT_WORKER_IDLE_TIMEOUT;
+    private boolean mDestroyed = false;
+
+    /**
+     * Pending updates, one slot per update reason. A request for a reason that is already
+     * pending is collapsed into the pending one. Guarded by {@link #mQueueLock}.
+     */
+    private final Object mQueueLock = new Object();
+    private final boolean[] mPendingUpdates = new boolean[UPDATE_REASON_COUNT];
+    private final int[] mPendingUpdateReasons = new int[UPDATE_REASON_COUNT];
+    private final long[] mPendingUpdateEnqueueTimes = new long[UPDATE_REASON_COUNT];
+    private boolean mQueueScheduled = false;
+
+    /**
+     * Signal of the running update. Canceled and cleared when the update is superseded. Guarded
+     * by {@link #mQueueLock}.
+     */
+    private CancellationSignal mRunningUpdateSignal;
+
+    /**
+     * Priority of the running update, see {@link #getPriority(int)}. Guarded by
+     * {@link #mQueueLock}.
+     */
+    private int mRunningPriority = UPDATE_REASON_COUNT;
+
+    /**
+     * Incremented whenever an update is requested. An update started at a given generation
+     * covers all requests made up to then. Used to order the results of updates, see
+     * {@link #mPublishedGeneration}.
+     */
+    private final AtomicLong mGeneration = new AtomicLong();
+    private volatile long mRunningGeneration = 0;
+    private volatile CancellationSignal mUpdateSignal;
+
+    private final Runnable mProcessQueue = new Runnable() {
+        @Override
+        public void run() {
+            processNextUpdate();
+        }
+    };
+
+    private final Runnable mStopWorker = new Runnable() {
+        @Override
+        public void run() {
+            stopIdleWorker();
+        }
+    };
 
     protected DashClockExtension() {
         super();
@@ -187,18 +408,42 @@ public abstract class DashClockExtension extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        HandlerThread thread = new HandlerThread(
-                "DashClockExtension:" + getClass().getSimpleName());
-        thread.start();
+        mPublishExecutor = new ThreadPoolExecutor(1, 1, PUBLISH_THREAD_KEEP_ALIVE,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable,
+                                "DashClockExtension:publish:" + getClass().getSimpleName());
+                    }
+                });
+        mPublishExecutor.allowCoreThreadTimeOut(true);
 
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new Handler(mServiceLooper);
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, packageFilter);
     }
 
     @Override
     public void onDestroy() {
-        mServiceHandler.removeCallbacksAndMessages(null); // remove all callbacks
-        mServiceLooper.quit();
+        synchronized (mQueueLock) {
+            mDestroyed = true;
+            if (mServiceHandler != null) {
+                mServiceHandler.removeCallbacksAndMessages(null); // remove all callbacks
+                mServiceLooper.quit();
+                mServiceHandler = null;
+                mServiceLooper = null;
+            }
+        }
+        mPublishExecutor.shutdown();
+        unregisterReceiver(mPackageReceiver);
+
+        for (HostRecord record : mHosts) {
+            removeHost(record);
+        }
     }
 
     @Override
@@ -206,31 +451,43 @@ public abstract class DashClockExtension extends Service {
         return mBinder;
     }
 
+    /**
+     * Called when all hosts have unbound. Their processes may still be alive, so they have to be
+     * removed here; otherwise they'd keep receiving every update. Hosts that bind again call
+     * {@link IExtension#onInitialize(IExtensionHost, boolean)} and are added anew.
+     */
+    @Override
+    public boolean onUnbind(Intent intent) {
+        for (HostRecord record : mHosts) {
+            removeHost(record);
+        }
+        return super.onUnbind(intent);
+    }
+
     private IExtension.Stub mBinder = new IExtension.Stub() {
         @Override
         public void onInitialize(IExtensionHost host, boolean isReconnect)
                 throws RemoteException {
-            if (checkCallingOrSelfPermission(PERMISSION_READ_EXTENSION_DATA)
-                    != PackageManager.PERMISSION_GRANTED) {
-                throw new SecurityException("Caller does not have the READ_EXTENSION_DATA "
-                        + "permission.");
-            }
+            enforceCallerPermission();
 
-            mHost = host;
+            addHost(host, Binder.getCallingUid());
 
-            if (!mInitialized) {
-                DashClockExtension.this.onInitialize(isReconnect);
-                mInitialized = true;
+            // Make sure the (new) host receives the next update
+            synchronized (mPublishLock) {
+                mHasPublishedData = false;
+            }
+
+            synchronized (mHostLock) {
+                if (!mInitialized) {
+                    DashClockExtension.this.onInitialize(isReconnect);
+                    mInitialized = true;
+                }
             }
         }
 
         @Override
         public void onUpdate(final int reason) throws RemoteException {
-            if (checkCallingOrSelfPermission(PERMISSION_READ_EXTENSION_DATA)
-                    != PackageManager.PERMISSION_GRANTED) {
-                throw new SecurityException("Caller does not have the READ_EXTENSION_DATA "
-                        + "permission.");
-            }
+            enforceCallerPermission();
 
             if (!mInitialized) {
                 return;
@@ -240,6 +497,85 @@ public abstract class DashClockExtension extends Service {
         }
     };
 
+    /**
+     * Registers a host, unless it's already registered, and sends it the settings made so far.
+     *
+     * <p>
+     * A host that reconnects passes a new {@link IExtensionHost} binder. The record of the old
+     * binder of the same UID is removed, so the host doesn't receive each update twice.
+     */
+    private void addHost(IExtensionHost host, int uid) {
+        synchronized (mHostLock) {
+            IBinder binder = host.asBinder();
+            for (HostRecord record : mHosts) {
+                if (record.binder == binder) {
+                    return;
+                }
+                if (record.uid == uid) {
+                    // Replaced by the new binder
+                    removeHost(record);
+                }
+            }
+
+            HostRecord record = new HostRecord(host, uid);
+            try {
+                binder.linkToDeath(record, 0);
+            } catch (RemoteException e) {
+                // Already dead
+                return;
+            }
+            mHosts.add(record);
+
+            try {
+                if (!mWatchContentUris.isEmpty()) {
+                    host.addWatchContentUris(
+                            mWatchContentUris.toArray(new String[mWatchContentUris.size()]));
+                }
+                if (mUpdateWhenScreenOn != null) {
+                    host.setUpdateWhenScreenOn(mUpdateWhenScreenOn);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't send settings to new host.", e);
+            }
+        }
+    }
+
+    private void removeHost(HostRecord record) {
+        synchronized (mHostLock) {
+            if (mHosts.remove(record)) {
+                record.binder.unlinkToDeath(record, 0);
+            }
+        }
+    }
+
+    /**
+     * Throws a {@link SecurityException} if the caller of the current binder transaction doesn't
+     * have the {@link #PERMISSION_READ_EXTENSION_DATA} permission.
+     *
+     * <p>
+     * Checking a permission is a call into the system server. The host calls us frequently, so
+     * UIDs that passed the check are remembered until the next package change.
+     */
+    private void enforceCallerPermission() {
+        int uid = Binder.getCallingUid();
+        synchronized (mPermittedUids) {
+            if (mPermittedUids.get(uid)) {
+                return;
+            }
+        }
+
+        mPermissionCheckCounter.incrementAndGet();
+        if (checkCallingOrSelfPermission(PERMISSION_READ_EXTENSION_DATA)
+                != PackageManager.PERMISSION_GRANTED) {
+            throw new SecurityException("Caller does not have the READ_EXTENSION_DATA "
+                    + "permission.");
+        }
+
+        synchronized (mPermittedUids) {
+            mPermittedUids.put(uid, true);
+        }
+    }
+
     /**
      * Called when a connection with the main DashClock app has been established or re-established
      * after a previous one was lost. In this latter case, the parameter <code>isReconnect</code>
@@ -271,15 +607,127 @@ public abstract class DashClockExtension extends Service {
      * {@link #onInitialize(boolean)} has been called. If you only call this from within
      * {@link #onUpdateData(int)} this is already ensured.
      *
+     * <p>
+     * If <code>data</code> is equal to the data that was last published, no update is sent to
+     * DashClock. Neither is it when the data of an update that was requested later has already
+     * been published. The data of a superseded update (see {@link #isUpdateSuperseded()}) is
+     * still published; it's the most recent data available until the newer update is done.
+     *
+     * <p>
+     * This method doesn't wait for DashClock. The data is copied, cleaned up (see
+     * {@link ExtensionData#clean()}) and sent to all connected hosts from a separate thread. If
+     * the hosts are slow to accept updates, only the most recent data is sent.
+     *
      * @param data The data to show, or <code>null</code> if existing data should be cleared (hiding
      *             the extension from view).
      */
     protected final void publishUpdate(ExtensionData data) {
-        try {
-            mHost.publishUpdate(data);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Couldn't publish updated extension data.", e);
+        long generation = isWorkerThread() ? mRunningGeneration : 0;
+        if (generation == 0) {
+            // Not called from onUpdateData(). The data covers all requests made so far.
+            generation = mGeneration.get();
         }
+
+        Publication replaced;
+        synchronized (mPublishLock) {
+            if (generation < mPublishedGeneration) {
+                // Don't overwrite the result of a newer update with our older data
+                mSupersededPublishCounter.incrementAndGet();
+                return;
+            }
+            mPublishedGeneration = generation;
+
+            if (mHasPublishedData && ExtensionData.equals(data, mLastPublishedData)) {
+                mSkippedPublishCounter.incrementAndGet();
+                return;
+            }
+
+            ExtensionData copy = (data == null) ? null : new ExtensionData(data);
+            mLastPublishedData = copy;
+            mHasPublishedData = true;
+
+            // Clean up once for all hosts
+            ExtensionData cleaned = null;
+            if (copy != null) {
+                cleaned = new ExtensionData(copy);
+                cleaned.clean();
+            }
+
+            // Hand over while holding the lock, so publications reach the mailbox in the order
+            // of their generations and older data can't replace newer data
+            Publication publication = new Publication(cleaned, System.nanoTime());
+            replaced = mPendingPublication.getAndSet(publication);
+        }
+
+        if (replaced != null) {
+            // The publisher didn't pick up the previous data yet and will send ours instead
+            mReplacedPublishCounter.incrementAndGet();
+        } else {
+            try {
+                mPublishExecutor.execute(mPublishRunnable);
+            } catch (RejectedExecutionException e) {
+                // The service is being destroyed
+            }
+        }
+    }
+
+    /**
+     * Sends data to all hosts. Called on the publisher thread.
+     *
+     * <p>
+     * A host that fails to accept the data doesn't affect the others. A host whose process died
+     * is removed.
+     */
+    private void deliver(Publication publication) {
+        if (mHosts.isEmpty()) {
+            return;
+        }
+
+        boolean failed = false;
+        for (HostRecord record : mHosts) {
+            try {
+                long start = System.nanoTime();
+                record.host.publishUpdate(publication.data);
+                mPublishHistogram.record(System.nanoTime() - start);
+            } catch (DeadObjectException e) {
+                removeHost(record);
+            } catch (RemoteException e) {
+                mFailedPublishCounter.incrementAndGet();
+                Log.e(TAG, "Couldn't publish updated extension data.", e);
+                failed = true;
+            }
+        }
+        mPublishLatencyHistogram.record(System.nanoTime() - publication.enqueueTime);
+
+        if (failed) {
+            // Don't skip the same data next time
+            synchronized (mPublishLock) {
+                mHasPublishedData = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of calls to {@link #publishUpdate(ExtensionData)} that weren't passed on
+     * to DashClock because the data didn't change.
+     */
+    protected final long getSkippedPublishCount() {
+        return mSkippedPublishCounter.get();
+    }
+
+    /**
+     * Returns the metrics of this extension's update pipeline. Subclasses can add their own
+     * counters and histograms. They are included in the output of
+     * {@link #dump(FileDescriptor, PrintWriter, String[])}.
+     */
+    protected final UpdateMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(getClass().getSimpleName() + " update metrics");
+        mMetrics.dump(writer);
     }
 
     /**
@@ -289,13 +737,22 @@ public abstract class DashClockExtension extends Service {
      * and call this extension's {@link #onUpdateData(int)} method when changes are observed.
      * This should generally be called in the {@link #onInitialize(boolean)} method.
      *
+     * <p>
+     * The request is sent to all connected hosts and repeated for hosts that connect later.
+     *
      * @param uris The URIs to watch.
      */
     protected final void addWatchContentUris(String[] uris) {
-        try {
-            mHost.addWatchContentUris(uris);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Couldn't watch content URIs.", e);
+        synchronized (mHostLock) {
+            mWatchContentUris.addAll(Arrays.asList(uris));
+
+            for (HostRecord record : mHosts) {
+                try {
+                    record.host.addWatchContentUris(uris);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Couldn't watch content URIs.", e);
+                }
+            }
         }
     }
 
@@ -305,31 +762,269 @@ public abstract class DashClockExtension extends Service {
      * This should generally be called in the {@link #onInitialize(boolean)} method. By default,
      * extensions do not get updated when the screen turns on.
      *
+     * <p>
+     * The request is sent to all connected hosts and repeated for hosts that connect later.
+     *
      * @see Intent#ACTION_SCREEN_ON
      * @param updateWhenScreenOn Whether or not a call to {@link #onUpdateData(int)} method when
      *                           the screen turns on.
      */
     protected final void setUpdateWhenScreenOn(boolean updateWhenScreenOn) {
-        try {
-            mHost.setUpdateWhenScreenOn(updateWhenScreenOn);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Couldn't set the extension to update upon ACTION_SCREEN_ON.", e);
+        synchronized (mHostLock) {
+            mUpdateWhenScreenOn = updateWhenScreenOn;
+
+            for (HostRecord record : mHosts) {
+                try {
+                    record.host.setUpdateWhenScreenOn(updateWhenScreenOn);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Couldn't set the extension to update upon ACTION_SCREEN_ON.", e);
+                }
+            }
         }
     }
 
+    /**
+     * Returns whether an update with a higher priority was requested while
+     * {@link #onUpdateData(int)} is running. That update runs next. Long-running updates may
+     * check this and skip work whose result would be replaced right away. Data the current
+     * update publishes is still passed on to DashClock.
+     *
+     * <p>
+     * Requests with the same or a lower priority don't supersede the running update, e.g. a
+     * {@link #UPDATE_REASON_CONTENT_CHANGED} request doesn't interrupt an update the user is
+     * waiting for, and a steady stream of them doesn't keep every update from finishing.
+     *
+     * <p>
+     * Returns <code>false</code> when not called from {@link #onUpdateData(int)}.
+     */
+    protected final boolean isUpdateSuperseded() {
+        CancellationSignal signal = getUpdateCancellationSignal();
+        return signal != null && signal.isCanceled();
+    }
+
+    /**
+     * Returns a signal that is canceled as soon as the update that is currently running is
+     * superseded (see {@link #isUpdateSuperseded()}). Pass it to long-running operations, e.g.
+     * {@link android.content.ContentResolver#query(android.net.Uri, String[], String, String[],
+     * String, CancellationSignal) ContentResolver.query()}.
+     *
+     * @return The signal of the current update, or <code>null</code> when not called from
+     *         {@link #onUpdateData(int)}.
+     */
+    protected final CancellationSignal getUpdateCancellationSignal() {
+        return isWorkerThread() ? mUpdateSignal : null;
+    }
+
+    /**
+     * Sets the time after which the update thread is terminated when there are no more updates
+     * to process. The thread is started again by the next call to
+     * {@link #updateDataInBackground(int)}.
+     *
+     * @param idleTimeoutMillis
+     *         The idle time in milliseconds, or <code>0</code> to keep the thread running until
+     *         the service is destroyed. Defaults to {@link #DEFAULT_WORKER_IDLE_TIMEOUT}.
+     */
+    protected final void setWorkerIdleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Negative idle timeout: " + idleTimeoutMillis);
+        }
+
+        synchronized (mQueueLock) {
+            mWorkerIdleTimeout = idleTimeoutMillis;
+
+            if (mServiceHandler != null && !mQueueScheduled) {
+                mServiceHandler.removeCallbacks(mStopWorker);
+                scheduleWorkerStopLocked();
+            }
+        }
+    }
+
+    private boolean isWorkerThread() {
+        Looper looper = mServiceLooper;
+        return looper != null && Looper.myLooper() == looper;
+    }
+
     /**
      * Call {@link #onUpdateData(int)} from a background thread.
      *
+     * <p>
+     * Requests are not processed in order. A request for a reason that is already pending is
+     * collapsed into the pending one, and updates the user is waiting for
+     * ({@link #UPDATE_REASON_INITIAL}, {@link #UPDATE_REASON_SCREEN_ON},
+     * {@link #UPDATE_REASON_SETTINGS_CHANGED}) are processed first and at a higher thread
+     * priority. An update that is running when one with a higher priority is requested is
+     * superseded, see {@link #isUpdateSuperseded()}.
+     *
      * @param reason
      *         See {@link #onUpdateData(int)}
      */
     public void updateDataInBackground(final int reason) {
-        // Do this in a separate thread
-        mServiceHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                DashClockExtension.this.onUpdateData(reason);
+        final long enqueueTime = System.nanoTime();
+        int slot = (reason < 0 || reason >= UPDATE_REASON_COUNT) ? UPDATE_REASON_UNKNOWN : reason;
+
+        CancellationSignal supersededSignal;
+        synchronized (mQueueLock) {
+            if (mDestroyed) {
+                return;
+            }
+
+            mGeneration.incrementAndGet();
+
+            supersededSignal = null;
+            if (mRunningUpdateSignal != null && getPriority(slot) < mRunningPriority) {
+                supersededSignal = mRunningUpdateSignal;
+                mRunningUpdateSignal = null;
+            }
+
+            if (mPendingUpdates[slot]) {
+                mCollapsedUpdateCounter.incrementAndGet();
+            } else {
+                mPendingUpdates[slot] = true;
+                mPendingUpdateEnqueueTimes[slot] = enqueueTime;
+            }
+            mPendingUpdateReasons[slot] = reason;
+
+            if (!mQueueScheduled) {
+                mQueueScheduled = true;
+
+                // Do this in a separate thread
+                Handler handler = startWorkerLocked();
+                handler.removeCallbacks(mStopWorker);
+                handler.post(mProcessQueue);
+            }
+        }
+
+        if (supersededSignal != null) {
+            supersededSignal.cancel();
+        }
+    }
+
+    private Handler startWorkerLocked() {
+        if (mServiceHandler == null) {
+            HandlerThread thread = new HandlerThread(
+                    "DashClockExtension:" + getClass().getSimpleName(),
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+
+            mServiceLooper = thread.getLooper();
+            mServiceHandler = new Handler(mServiceLooper);
+            mWorkerStartCounter.incrementAndGet();
+        }
+
+        return mServiceHandler;
+    }
+
+    private void scheduleWorkerStopLocked() {
+        if (mServiceHandler != null && mWorkerIdleTimeout > 0) {
+            mServiceHandler.postDelayed(mStopWorker, mWorkerIdleTimeout);
+        }
+    }
+
+    /**
+     * Terminates the update thread unless an update was requested since it became idle. Runs on
+     * the update thread.
+     */
+    private void stopIdleWorker() {
+        synchronized (mQueueLock) {
+            if (mQueueScheduled || mServiceHandler == null) {
+                return;
             }
-        });
+
+            mServiceLooper.quit();
+            mServiceHandler = null;
+            mServiceLooper = null;
+        }
+    }
+
+    private void processNextUpdate() {
+        int reason;
+        long enqueueTime;
+        long generation;
+        CancellationSignal signal;
+        synchronized (mQueueLock) {
+            int slot = -1;
+            for (int candidate : UPDATE_REASON_PRIORITY) {
+                if (mPendingUpdates[candidate]) {
+                    slot = candidate;
+                    break;
+                }
+            }
+
+            if (slot == -1) {
+                mQueueScheduled = false;
+                scheduleWorkerStopLocked();
+                return;
+            }
+
+            mPendingUpdates[slot] = false;
+            reason = mPendingUpdateReasons[slot];
+            enqueueTime = mPendingUpdateEnqueueTimes[slot];
+
+            // This update covers all requests made so far
+            generation = mGeneration.get();
+            signal = new CancellationSignal();
+            mRunningUpdateSignal = signal;
+            mRunningPriority = getPriority(slot);
+        }
+
+        boolean userVisible = isUserVisible(reason);
+        if (userVisible) {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+        }
+
+        mRunningGeneration = generation;
+        mUpdateSignal = signal;
+        try {
+            long start = System.nanoTime();
+            mQueueWaitHistogram.record(start - enqueueTime);
+            countUpdateReason(reason);
+
+            DashClockExtension.this.onUpdateData(reason);
+
+            mUpdateHistogram.record(System.nanoTime() - start);
+        } finally {
+            mRunningGeneration = 0;
+            mUpdateSignal = null;
+
+            if (userVisible) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+
+            synchronized (mQueueLock) {
+                if (mRunningUpdateSignal == signal) {
+                    mRunningUpdateSignal = null;
+                }
+                mRunningPriority = UPDATE_REASON_COUNT;
+
+                if (mServiceHandler != null) {
+                    mServiceHandler.post(mProcessQueue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the position of an update reason in {@link #UPDATE_REASON_PRIORITY}. Lower values
+     * mean higher priority.
+     */
+    private static int getPriority(int slot) {
+        for (int i = 0; i < UPDATE_REASON_COUNT; i++) {
+            if (UPDATE_REASON_PRIORITY[i] == slot) {
+                return i;
+            }
+        }
+        return UPDATE_REASON_COUNT;
+    }
+
+    private static boolean isUserVisible(int reason) {
+        return reason == UPDATE_REASON_INITIAL || reason == UPDATE_REASON_SCREEN_ON
+                || reason == UPDATE_REASON_SETTINGS_CHANGED;
+    }
+
+    private void countUpdateReason(int reason) {
+        if (reason < 0 || reason >= mUpdateReasonCounters.length) {
+            reason = UPDATE_REASON_UNKNOWN;
+        }
+        mUpdateReasonCounters[reason].incrementAndGet();
     }
 }
@@ -20,6 +20,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -61,6 +62,7 @@ import java.net.URISyntaxException;
  * <li>{@link #expandedTitle(String)}</li>
  * <li>{@link #expandedBody(String)}</li>
  * <li>{@link #clickIntent(android.content.Intent)}</li>
+ * <li>{@link #contentDescription(String)}</li>
  * </ul>
  *
  * @see DashClockExtension#publishUpdate(ExtensionData)
@@ -71,11 +73,15 @@ public class ExtensionData implements Parcelable {
      * old versions of the protocol (and thus old versions of this class), we need a versioning
      * system for the parcels sent between the core app and its extensions.
      */
-    public static final int PARCELABLE_VERSION = 1;
+    public static final int PARCELABLE_VERSION = 2;
 
     /**
-     * The number of fields in this version of the parcelable.
+     * The number of fields in version 1 of the parcelable.
+     *
+     * @deprecated Since version 2 the parcel contains its size in bytes, which is computed when
+     *             writing the parcel.
      */
+    @Deprecated
     public static final int PARCELABLE_SIZE = 6;
 
     private static final String KEY_VISIBLE = "visible";
@@ -84,6 +90,8 @@ public class ExtensionData implements Parcelable {
     private static final String KEY_EXPANDED_TITLE = "title";
     private static final String KEY_EXPANDED_BODY = "body";
     private static final String KEY_CLICK_INTENT = "click_intent";
+    private static final String KEY_CONTENT_DESCRIPTION = "content_description";
+    private static final String KEY_ICON_URI = "icon_uri";
 
     /**
      * The maximum length for {@link #status(String)}. Enforced by {@link #clean()}.
@@ -100,6 +108,12 @@ public class ExtensionData implements Parcelable {
      */
     public static final int MAX_EXPANDED_BODY_LENGTH = 1000;
 
+    /**
+     * The maximum length for {@link #contentDescription(String)}. Enforced by {@link #clean()}.
+     */
+    public static final int MAX_CONTENT_DESCRIPTION_LENGTH =
+            MAX_STATUS_LENGTH + MAX_EXPANDED_TITLE_LENGTH + MAX_EXPANDED_BODY_LENGTH;
+
     private boolean mVisible = false;
     private int mIcon = 0;
     private String mStatus = null;
@@ -107,9 +121,40 @@ public class ExtensionData implements Parcelable {
     private String mExpandedBody = null;
     private Intent mClickIntent = null;
 
+    /**
+     * URI representation of the click intent. Parceling, serialization and comparisons use this
+     * instead of {@link #mClickIntent}. If only the URI is known (e.g. after unparceling),
+     * {@link #mClickIntent} is created the first time {@link #clickIntent()} is called.
+     */
+    private String mClickIntentUri = null;
+
+    private String mContentDescription = null;
+    private Uri mIconUri = null;
+
+    /**
+     * Cached result of {@link #hashCode()}. {@code 0} if it needs to be (re)computed.
+     */
+    private int mHashCode = 0;
+
     public ExtensionData() {
     }
 
+    /**
+     * Creates a shallow copy of {@code other}.
+     */
+    ExtensionData(ExtensionData other) {
+        mVisible = other.mVisible;
+        mIcon = other.mIcon;
+        mStatus = other.mStatus;
+        mExpandedTitle = other.mExpandedTitle;
+        mExpandedBody = other.mExpandedBody;
+        mClickIntent = other.mClickIntent;
+        mClickIntentUri = other.mClickIntentUri;
+        mContentDescription = other.mContentDescription;
+        mIconUri = other.mIconUri;
+        mHashCode = other.mHashCode;
+    }
+
     /**
      * Returns whether or not the relevant extension should be visible (whether or not there is
      * relevant information to show to the user about the extension). Default false.
@@ -124,6 +169,7 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData visible(boolean visible) {
         mVisible = visible;
+        mHashCode = 0;
         return this;
     }
 
@@ -143,6 +189,7 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData icon(int icon) {
         mIcon = icon;
+        mHashCode = 0;
         return this;
     }
 
@@ -163,6 +210,7 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData status(String status) {
         mStatus = status;
+        mHashCode = 0;
         return this;
     }
 
@@ -182,6 +230,7 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData expandedTitle(String expandedTitle) {
         mExpandedTitle = expandedTitle;
+        mHashCode = 0;
         return this;
     }
 
@@ -200,6 +249,7 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData expandedBody(String expandedBody) {
         mExpandedBody = expandedBody;
+        mHashCode = 0;
         return this;
     }
 
@@ -209,6 +259,12 @@ public class ExtensionData implements Parcelable {
      * the status in DashClock. Default null.
      */
     public Intent clickIntent() {
+        if (mClickIntent == null && mClickIntentUri != null) {
+            try {
+                mClickIntent = Intent.parseUri(mClickIntentUri, 0);
+            } catch (URISyntaxException ignored) {
+            }
+        }
         return mClickIntent;
     }
 
@@ -217,9 +273,70 @@ public class ExtensionData implements Parcelable {
      * {@link android.content.Context#startActivity(android.content.Intent)}) when the user clicks
      * the status in DashClock. The activity represented by this intent will be started in a new
      * task and should be exported. Default null.
+     *
+     * <p>
+     * Changes made to the intent after calling this method are not picked up.
      */
     public ExtensionData clickIntent(Intent clickIntent) {
         mClickIntent = clickIntent;
+        mClickIntentUri = (clickIntent == null) ? null : clickIntent.toUri(0);
+        mHashCode = 0;
+        return this;
+    }
+
+    /**
+     * Returns the content description for this data, used for accessibility purposes.
+     * Default null.
+     */
+    public String contentDescription() {
+        return mContentDescription;
+    }
+
+    /**
+     * Sets the content description for this data. This content description will replace the
+     * {@link #status()}, {@link #expandedTitle()} and {@link #expandedBody()} for
+     * accessibility purposes. Default null.
+     */
+    public ExtensionData contentDescription(String contentDescription) {
+        mContentDescription = contentDescription;
+        mHashCode = 0;
+        return this;
+    }
+
+    /**
+     * Returns the URI of an icon that represents this data, or null if {@link #icon()} should
+     * be used. Default null.
+     */
+    public Uri iconUri() {
+        return mIconUri;
+    }
+
+    /**
+     * Sets the URI of an icon that represents this data. The icon should follow the same
+     * guidelines as {@link #icon(int)}. If set, hosts that support it use this icon instead of
+     * the one set by {@link #icon(int)}. Default null.
+     */
+    public ExtensionData iconUri(Uri iconUri) {
+        mIconUri = iconUri;
+        mHashCode = 0;
+        return this;
+    }
+
+    /**
+     * Returns the URI representation of the click intent, without creating an {@link Intent}.
+     */
+    String clickIntentUri() {
+        return mClickIntentUri;
+    }
+
+    /**
+     * Sets the click intent from its URI representation. The {@link Intent} is only created
+     * when {@link #clickIntent()} is called.
+     */
+    ExtensionData clickIntentUri(String clickIntentUri) {
+        mClickIntent = null;
+        mClickIntentUri = TextUtils.isEmpty(clickIntentUri) ? null : clickIntentUri;
+        mHashCode = 0;
         return this;
     }
 
@@ -233,7 +350,9 @@ public class ExtensionData implements Parcelable {
         data.put(KEY_STATUS, mStatus);
         data.put(KEY_EXPANDED_TITLE, mExpandedTitle);
         data.put(KEY_EXPANDED_BODY, mExpandedBody);
-        data.put(KEY_CLICK_INTENT, (mClickIntent == null) ? null : mClickIntent.toUri(0));
+        data.put(KEY_CLICK_INTENT, mClickIntentUri);
+        data.put(KEY_CONTENT_DESCRIPTION, mContentDescription);
+        data.put(KEY_ICON_URI, (mIconUri == null) ? null : mIconUri.toString());
         return data;
     }
 
@@ -242,15 +361,15 @@ public class ExtensionData implements Parcelable {
      * object.
      */
     public void deserialize(JSONObject data) throws JSONException {
+        this.mHashCode = 0;
         this.mVisible = data.optBoolean(KEY_VISIBLE);
         this.mIcon = data.optInt(KEY_ICON);
         this.mStatus = data.optString(KEY_STATUS);
         this.mExpandedTitle = data.optString(KEY_EXPANDED_TITLE);
         this.mExpandedBody = data.optString(KEY_EXPANDED_BODY);
-        try {
-            this.mClickIntent = Intent.parseUri(data.optString(KEY_CLICK_INTENT), 0);
-        } catch (URISyntaxException ignored) {
-        }
+        clickIntentUri(data.optString(KEY_CLICK_INTENT));
+        this.mContentDescription = data.optString(KEY_CONTENT_DESCRIPTION);
+        this.mIconUri = parseUri(data.optString(KEY_ICON_URI));
     }
 
     /**
@@ -263,7 +382,9 @@ public class ExtensionData implements Parcelable {
         data.putString(KEY_STATUS, mStatus);
         data.putString(KEY_EXPANDED_TITLE, mExpandedTitle);
         data.putString(KEY_EXPANDED_BODY, mExpandedBody);
-        data.putString(KEY_CLICK_INTENT, (mClickIntent == null) ? null : mClickIntent.toUri(0));
+        data.putString(KEY_CLICK_INTENT, mClickIntentUri);
+        data.putString(KEY_CONTENT_DESCRIPTION, mContentDescription);
+        data.putString(KEY_ICON_URI, (mIconUri == null) ? null : mIconUri.toString());
         return data;
     }
 
@@ -272,15 +393,15 @@ public class ExtensionData implements Parcelable {
      * object.
      */
     public void fromBundle(Bundle src) {
+        this.mHashCode = 0;
         this.mVisible = src.getBoolean(KEY_VISIBLE, true);
         this.mIcon = src.getInt(KEY_ICON);
         this.mStatus = src.getString(KEY_STATUS);
         this.mExpandedTitle = src.getString(KEY_EXPANDED_TITLE);
         this.mExpandedBody = src.getString(KEY_EXPANDED_BODY);
-        try {
-            this.mClickIntent = Intent.parseUri(src.getString(KEY_CLICK_INTENT), 0);
-        } catch (URISyntaxException ignored) {
-        }
+        clickIntentUri(src.getString(KEY_CLICK_INTENT));
+        this.mContentDescription = src.getString(KEY_CONTENT_DESCRIPTION);
+        this.mIconUri = parseUri(src.getString(KEY_ICON_URI));
     }
 
     /**
@@ -300,6 +421,7 @@ public class ExtensionData implements Parcelable {
     private ExtensionData(Parcel in) {
         int parcelableVersion = in.readInt();
         int parcelableSize = in.readInt();
+        int startPosition = in.dataPosition();
         // Version 1 below
         if (parcelableVersion >= 1) {
             this.mVisible = (in.readInt() != 0);
@@ -316,35 +438,51 @@ public class ExtensionData implements Parcelable {
             if (TextUtils.isEmpty(this.mExpandedBody)) {
                 this.mExpandedBody = null;
             }
-            try {
-                this.mClickIntent = Intent.parseUri(in.readString(), 0);
-            } catch (URISyntaxException ignored) {
-            }
+            clickIntentUri(in.readString());
         }
         // Version 2 below
+        if (parcelableVersion >= 2) {
+            this.mContentDescription = in.readString();
+            if (TextUtils.isEmpty(this.mContentDescription)) {
+                this.mContentDescription = null;
+            }
+            this.mIconUri = parseUri(in.readString());
+        }
 
-        // Skip any fields we don't know about. For example, if our current version's
-        // PARCELABLE_SIZE is 6 and the input parcelableSize is 12, skip the 6 fields we
-        // haven't read yet (from above) since we don't know about them.
-        in.setDataPosition(in.dataPosition() + (PARCELABLE_SIZE - parcelableSize));
+        // Skip any fields we don't know about. Version 1 parcels contain the number of fields
+        // instead of the size in bytes, but there is nothing to skip in that case.
+        if (parcelableVersion >= 2) {
+            in.setDataPosition(startPosition + parcelableSize);
+        }
     }
 
     @Override
     public void writeToParcel(Parcel parcel, int i) {
         /**
          * NOTE: When adding fields in the process of updating this API, make sure to bump
-         * {@link #PARCELABLE_VERSION} and modify {@link #PARCELABLE_SIZE}.
+         * {@link #PARCELABLE_VERSION}.
          */
         parcel.writeInt(PARCELABLE_VERSION);
-        parcel.writeInt(PARCELABLE_SIZE);
+        // Placeholder for the size in bytes of everything that follows it
+        int sizePosition = parcel.dataPosition();
+        parcel.writeInt(0);
+        int startPosition = parcel.dataPosition();
         // Version 1 below
         parcel.writeInt(mVisible ? 1 : 0);
         parcel.writeInt(mIcon);
         parcel.writeString(TextUtils.isEmpty(mStatus) ? "" : mStatus);
         parcel.writeString(TextUtils.isEmpty(mExpandedTitle) ? "" : mExpandedTitle);
         parcel.writeString(TextUtils.isEmpty(mExpandedBody) ? "" : mExpandedBody);
-        parcel.writeString((mClickIntent == null) ? "" : mClickIntent.toUri(0));
+        parcel.writeString((mClickIntentUri == null) ? "" : mClickIntentUri);
         // Version 2 below
+        parcel.writeString(TextUtils.isEmpty(mContentDescription) ? "" : mContentDescription);
+        parcel.writeString((mIconUri == null) ? "" : mIconUri.toString());
+
+        // Go back and write the size
+        int parcelableSize = parcel.dataPosition() - startPosition;
+        parcel.setDataPosition(sizePosition);
+        parcel.writeInt(parcelableSize);
+        parcel.setDataPosition(startPosition + parcelableSize);
     }
 
     @Override
@@ -361,24 +499,56 @@ public class ExtensionData implements Parcelable {
 
         try {
             ExtensionData other = (ExtensionData) o;
+            if (other == this) {
+                return true;
+            }
+            if (other.hashCode() != hashCode()) {
+                return false;
+            }
             return other.mVisible == mVisible
                     && other.mIcon == mIcon
                     && TextUtils.equals(other.mStatus, mStatus)
                     && TextUtils.equals(other.mExpandedTitle, mExpandedTitle)
                     && TextUtils.equals(other.mExpandedBody, mExpandedBody)
-                    && intentEquals(other.mClickIntent, mClickIntent);
+                    && TextUtils.equals(other.mClickIntentUri, mClickIntentUri)
+                    && TextUtils.equals(other.mContentDescription, mContentDescription)
+                    && uriEquals(other.mIconUri, mIconUri);
 
         } catch (ClassCastException e) {
             return false;
         }
     }
 
-    private static boolean intentEquals(Intent x, Intent y) {
-        if (x == null || y == null) {
-            return x == y;
-        } else {
-            return x.equals(y);
+    @Override
+    public int hashCode() {
+        int hashCode = mHashCode;
+        if (hashCode == 0) {
+            hashCode = (mVisible ? 1 : 0);
+            hashCode = 31 * hashCode + mIcon;
+            hashCode = 31 * hashCode + stringHashCode(mStatus);
+            hashCode = 31 * hashCode + stringHashCode(mExpandedTitle);
+            hashCode = 31 * hashCode + stringHashCode(mExpandedBody);
+            hashCode = 31 * hashCode + stringHashCode(mClickIntentUri);
+            hashCode = 31 * hashCode + stringHashCode(mContentDescription);
+            hashCode = 31 * hashCode + ((mIconUri == null) ? 0 : mIconUri.hashCode());
+            if (hashCode == 0) {
+                hashCode = 1;
+            }
+            mHashCode = hashCode;
         }
+        return hashCode;
+    }
+
+    private static int stringHashCode(String s) {
+        return (s == null) ? 0 : s.hashCode();
+    }
+
+    private static boolean uriEquals(Uri x, Uri y) {
+        return (x == null) ? y == null : x.equals(y);
+    }
+
+    private static Uri parseUri(String uriString) {
+        return TextUtils.isEmpty(uriString) ? null : Uri.parse(uriString);
     }
 
     /**
@@ -397,14 +567,22 @@ public class ExtensionData implements Parcelable {
      * {@link #MAX_STATUS_LENGTH}, {@link #MAX_EXPANDED_TITLE_LENGTH}, etc.
      */
     public void clean() {
+        mHashCode = 0;
         if (!TextUtils.isEmpty(mStatus) && mStatus.length() > MAX_STATUS_LENGTH) {
             mStatus = mStatus.substring(0, MAX_STATUS_LENGTH);
         }
-        if (!TextUtils.isEmpty(mExpandedTitle) && mStatus.length() > MAX_EXPANDED_TITLE_LENGTH) {
+        if (!TextUtils.isEmpty(mExpandedTitle)
+                && mExpandedTitle.length() > MAX_EXPANDED_TITLE_LENGTH) {
             mExpandedTitle = mExpandedTitle.substring(0, MAX_EXPANDED_TITLE_LENGTH);
         }
-        if (!TextUtils.isEmpty(mExpandedBody) && mStatus.length() > MAX_EXPANDED_BODY_LENGTH) {
+        if (!TextUtils.isEmpty(mExpandedBody)
+                && mExpandedBody.length() > MAX_EXPANDED_BODY_LENGTH) {
             mExpandedBody = mExpandedBody.substring(0, MAX_EXPANDED_BODY_LENGTH);
         }
+        if (!TextUtils.isEmpty(mContentDescription)
+                && mContentDescription.length() > MAX_CONTENT_DESCRIPTION_LENGTH) {
+            mContentDescription = mContentDescription.substring(0,
+                    MAX_CONTENT_DESCRIPTION_LENGTH);
+        }
     }
 }
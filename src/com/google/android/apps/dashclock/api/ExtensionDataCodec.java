@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import android.net.Uri;
+
+/**
+ * Compact binary representation of {@link ExtensionData}, e.g. for persisting it. Unlike
+ * {@link ExtensionData#serialize()} this doesn't build a JSON tree, and records can be read
+ * straight from a (memory-mapped) {@link ByteBuffer}.
+ *
+ * <p>
+ * A record starts with its length (an <code>int</code>, not including the length field itself)
+ * followed by the format version (a <code>short</code>) and the fields. Readers skip fields added
+ * by newer versions using the record length. Strings are stored as length-prefixed UTF-8, see
+ * {@link #putString(ByteBuffer, byte[])}. The helper methods for strings can be used to store
+ * additional records (e.g. per-account data) next to the extension data.
+ *
+ * <p>
+ * All values use the byte order of the buffer (big-endian by default).
+ */
+public final class ExtensionDataCodec {
+    /**
+     * The version of the record format written by {@link #encode(ExtensionData)}.
+     */
+    public static final int VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte FLAG_VISIBLE = 0x01;
+
+    /**
+     * Size of the fixed part of a version 1 record: version, flags, icon.
+     */
+    private static final int FIXED_SIZE_V1 = 2 + 1 + 4;
+
+    private ExtensionDataCodec() {
+    }
+
+    /**
+     * Encodes extension data as a length-prefixed record.
+     *
+     * @param data The data to encode. Must not be <code>null</code>.
+     * @return The record, including the length prefix.
+     */
+    public static byte[] encode(ExtensionData data) {
+        byte[] status = encodeString(data.status());
+        byte[] expandedTitle = encodeString(data.expandedTitle());
+        byte[] expandedBody = encodeString(data.expandedBody());
+        byte[] clickIntentUri = encodeString(data.clickIntentUri());
+        byte[] contentDescription = encodeString(data.contentDescription());
+        Uri iconUri = data.iconUri();
+        byte[] iconUriString = encodeString((iconUri == null) ? null : iconUri.toString());
+
+        int recordSize = FIXED_SIZE_V1 + getEncodedSize(status) + getEncodedSize(expandedTitle)
+                + getEncodedSize(expandedBody) + getEncodedSize(clickIntentUri)
+                + getEncodedSize(contentDescription) + getEncodedSize(iconUriString);
+
+        ByteBuffer out = ByteBuffer.allocate(4 + recordSize);
+        out.putInt(recordSize);
+        out.putShort((short) VERSION);
+        out.put(data.visible() ? FLAG_VISIBLE : 0);
+        out.putInt(data.icon());
+        putString(out, status);
+        putString(out, expandedTitle);
+        putString(out, expandedBody);
+        putString(out, clickIntentUri);
+        // Version 2 below
+        putString(out, contentDescription);
+        putString(out, iconUriString);
+
+        return out.array();
+    }
+
+    /**
+     * Decodes a record written by {@link #encode(ExtensionData)}, starting at the buffer's
+     * position. Afterwards the position is right behind the record.
+     *
+     * @param in The buffer to read from.
+     * @return The decoded extension data.
+     * @throws IllegalArgumentException If the buffer doesn't contain a valid record.
+     */
+    public static ExtensionData decode(ByteBuffer in) {
+        try {
+            int recordSize = in.getInt();
+            int end = in.position() + recordSize;
+            if (recordSize < FIXED_SIZE_V1 || end > in.limit()) {
+                throw new IllegalArgumentException("Invalid record size: " + recordSize);
+            }
+
+            int version = in.getShort();
+            if (version < 1) {
+                throw new IllegalArgumentException("Invalid record version: " + version);
+            }
+
+            ExtensionData data = new ExtensionData();
+            data.visible((in.get() & FLAG_VISIBLE) != 0);
+            data.icon(in.getInt());
+            data.status(getString(in));
+            data.expandedTitle(getString(in));
+            data.expandedBody(getString(in));
+            data.clickIntentUri(getString(in));
+            if (version >= 2) {
+                data.contentDescription(getString(in));
+                String iconUri = getString(in);
+                data.iconUri((iconUri == null) ? null : Uri.parse(iconUri));
+            }
+
+            if (in.position() > end) {
+                throw new IllegalArgumentException("Record is larger than its declared size");
+            }
+
+            // Skip fields added by newer versions
+            in.position(end);
+            return data;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated record", e);
+        }
+    }
+
+    /**
+     * Encodes a string to UTF-8.
+     *
+     * @return The encoded string, or <code>null</code> if <code>value</code> is
+     *         <code>null</code>.
+     */
+    public static byte[] encodeString(String value) {
+        return (value == null) ? null : value.getBytes(UTF_8);
+    }
+
+    /**
+     * Returns the number of bytes {@link #putString(ByteBuffer, byte[])} writes for a string
+     * encoded by {@link #encodeString(String)}.
+     */
+    public static int getEncodedSize(byte[] encodedString) {
+        return 4 + ((encodedString == null) ? 0 : encodedString.length);
+    }
+
+    /**
+     * Writes a string encoded by {@link #encodeString(String)}: its length in bytes (or -1 for
+     * <code>null</code>) followed by the bytes.
+     */
+    public static void putString(ByteBuffer out, byte[] encodedString) {
+        if (encodedString == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(encodedString.length);
+            out.put(encodedString);
+        }
+    }
+
+    /**
+     * Reads a string written by {@link #putString(ByteBuffer, byte[])}.
+     *
+     * @throws IllegalArgumentException If the length is invalid.
+     */
+    public static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, UTF_8);
+        }
+        return value;
+    }
+}
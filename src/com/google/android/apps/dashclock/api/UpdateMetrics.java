@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of named counters and latency histograms describing the update pipeline of a
+ * {@link DashClockExtension}. The contents are printed by
+ * <code>adb shell dumpsys activity service &lt;package name&gt;</code>.
+ *
+ * <p>
+ * Look up counters and histograms once and keep the reference around. Recording a value is
+ * cheap: counters are atomic, histograms only update a few fields under a lock that is
+ * practically never contended.
+ *
+ * <p>
+ * This class is thread-safe.
+ */
+public final class UpdateMetrics {
+    /**
+     * Latency histogram with power-of-two millisecond buckets: &lt;1 ms, &lt;2 ms, &lt;4 ms, ...
+     */
+    public static final class Histogram {
+        private static final int BUCKET_COUNT = 16;
+
+        private final long[] mBuckets = new long[BUCKET_COUNT];
+        private long mCount = 0;
+        private long mSumNanos = 0;
+        private long mMaxNanos = 0;
+
+        Histogram() {
+        }
+
+        /**
+         * Records a duration.
+         *
+         * @param nanos The duration in nanoseconds, e.g. the difference of two
+         *              {@link System#nanoTime()} values.
+         */
+        public synchronized void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+
+            long millis = nanos / 1000000;
+            int bucket = (millis == 0) ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+            mBuckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+
+            mCount++;
+            mSumNanos += nanos;
+            if (nanos > mMaxNanos) {
+                mMaxNanos = nanos;
+            }
+        }
+
+        /**
+         * Returns the number of recorded durations.
+         */
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Forgets all recorded durations.
+         */
+        public synchronized void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets[i] = 0;
+            }
+            mCount = 0;
+            mSumNanos = 0;
+            mMaxNanos = 0;
+        }
+
+        synchronized void dump(PrintWriter pw, String name) {
+            if (mCount == 0) {
+                pw.println("  " + name + ": -");
+                return;
+            }
+
+            pw.println(String.format("  %s: count=%d avg=%.2fms max=%.2fms", name, mCount,
+                    mSumNanos / 1e6 / mCount, mMaxNanos / 1e6));
+
+            StringBuilder buckets = new StringBuilder("    ");
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                if (mBuckets[i] == 0) {
+                    continue;
+                }
+                if (i == BUCKET_COUNT - 1) {
+                    buckets.append(">=").append(1L << (i - 1));
+                } else {
+                    buckets.append('<').append(1L << i);
+                }
+                buckets.append("ms:").append(mBuckets[i]).append(' ');
+            }
+            pw.println(buckets);
+        }
+    }
+
+    private final Map<String, AtomicLong> mCounters = new LinkedHashMap<String, AtomicLong>();
+    private final Map<String, Histogram> mHistograms = new LinkedHashMap<String, Histogram>();
+
+    /**
+     * Returns the counter with the given name, creating it if necessary.
+     */
+    public synchronized AtomicLong counter(String name) {
+        AtomicLong counter = mCounters.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            mCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if necessary.
+     */
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Prints all counters and histograms.
+     */
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Counters:");
+        for (Map.Entry<String, AtomicLong> entry : mCounters.entrySet()) {
+            pw.println("  " + entry.getKey() + ": " + entry.getValue().get());
+        }
+
+        pw.println("Latencies:");
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            entry.getValue().dump(pw, entry.getKey());
+        }
+    }
+}
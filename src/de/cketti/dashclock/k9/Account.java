@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+
+/**
+ * Stores information about a K-9 Mail account.
+ *
+ * <p><strong>Note:</strong> This class must not depend on the Android framework. It's used by
+ * {@link UnreadAggregator}, which is benchmarked on a plain JVM.</p>
+ *
+ * @see K9Helper#getAccounts(android.content.Context)
+ */
+public class Account {
+    /**
+     * The account number.
+     */
+    public final int number;
+
+    /**
+     * The name of the account.
+     */
+    public final String name;
+
+    /**
+     * The account's UUID.
+     */
+    public final String uuid;
+
+    /**
+     * RGB value of the account's color.
+     */
+    public final int color;
+
+    Account(int number, String name, String uuid, int color) {
+        this.number = number;
+        this.name = name;
+        this.uuid = uuid;
+        this.color = color;
+    }
+
+    /**
+     * Returns the account's name.
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
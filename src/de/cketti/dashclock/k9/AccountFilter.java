@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * In-memory copy of the accounts the user enabled in the settings.
+ *
+ * <p>The set of enabled accounts is kept up to date by the caller (see
+ * {@link #setEnabledAccounts(Set)}), so updates don't have to read the shared preferences. The
+ * result of {@link #filter(List)} is cached for the account list it was computed from. Since
+ * {@link AccountRepository} hands out the same immutable list until it is invalidated, filtering
+ * usually costs one reference comparison.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class AccountFilter {
+    /**
+     * Key of the preference containing the UUIDs of the enabled accounts.
+     */
+    static final String PREF_ACCOUNTS_LIST = "accounts_list";
+
+    private Set<String> mEnabledAccountUuids = null;
+    private List<Account> mAccounts = null;
+    private List<Account> mDisplayedAccounts = null;
+
+    /**
+     * Sets the UUIDs of the enabled accounts.
+     *
+     * @param enabledAccountUuids
+     *         The value of {@link #PREF_ACCOUNTS_LIST}, or {@code null} if the user didn't change
+     *         the default (all accounts are enabled). The set is copied.
+     */
+    public synchronized void setEnabledAccounts(Set<String> enabledAccountUuids) {
+        mEnabledAccountUuids = (enabledAccountUuids == null) ?
+                null : new HashSet<String>(enabledAccountUuids);
+        mAccounts = null;
+        mDisplayedAccounts = null;
+    }
+
+    /**
+     * Returns the enabled accounts.
+     *
+     * @param accounts
+     *         All accounts. The list must not be modified afterwards.
+     *
+     * @return An immutable list containing the enabled accounts in the order of
+     *         {@code accounts}.
+     */
+    public synchronized List<Account> filter(List<Account> accounts) {
+        if (accounts != mAccounts) {
+            mAccounts = accounts;
+            mDisplayedAccounts = Collections.unmodifiableList(
+                    UnreadAggregator.filter(accounts, mEnabledAccountUuids));
+        }
+
+        return mDisplayedAccounts;
+    }
+
+    /**
+     * Drops the cached result of {@link #filter(List)}. The set of enabled accounts is kept.
+     */
+    public synchronized void trimMemory() {
+        mAccounts = null;
+        mDisplayedAccounts = null;
+    }
+
+    /**
+     * Returns the estimated number of bytes retained by the filter, not including the accounts
+     * (they are shared with {@link AccountRepository}).
+     */
+    public synchronized long getMemoryFootprint() {
+        long size = MemoryFootprint.ofList(mDisplayedAccounts);
+        if (mEnabledAccountUuids != null) {
+            // HashSet, its table and one entry per UUID
+            size += 48 + 16 + 4L * mEnabledAccountUuids.size();
+            for (String uuid : mEnabledAccountUuids) {
+                size += 24 + MemoryFootprint.of(uuid);
+            }
+        }
+        return size;
+    }
+}
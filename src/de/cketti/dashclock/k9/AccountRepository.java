@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+
+
+/**
+ * Process-wide cache of K-9 Mail's account list.
+ *
+ * <p>The list of accounts rarely changes. So instead of querying K-9 Mail's content provider on
+ * every update we keep an immutable snapshot of the list around until we're told it might have
+ * changed, i.e. K-9 Mail sent {@link K9Helper.BroadcastIntents#ACTION_REFRESH_OBSERVER} or the
+ * K-9 Mail package was updated.</p>
+ *
+ * <p>This class is thread-safe. Reading the cached snapshot never blocks.</p>
+ */
+public class AccountRepository {
+    private static final AtomicReference<List<Account>> sAccounts =
+            new AtomicReference<List<Account>>();
+
+    /**
+     * Incremented by {@link #invalidate()}. Used to make sure the result of a query that was
+     * running while the cache was invalidated doesn't end up in the cache.
+     */
+    private static int sGeneration = 0;
+    private static final Object sLock = new Object();
+
+
+    private AccountRepository() {
+    }
+
+    /**
+     * Returns the cached list of accounts without blocking.
+     *
+     * @return An immutable list of accounts, or {@code null} if the cache is empty.
+     */
+    public static List<Account> getCachedAccounts() {
+        return sAccounts.get();
+    }
+
+    /**
+     * Returns the list of accounts, querying K-9 Mail's content provider if the cache is empty.
+     *
+     * <p>This should not be called from the main thread.</p>
+     *
+     * @param context
+     *         Used to retrieve the content resolver.
+     *
+     * @return An immutable list of accounts, or {@code null} in case of an error.
+     */
+    public static List<Account> getAccounts(Context context) {
+        List<Account> accounts = sAccounts.get();
+        if (accounts != null) {
+            return accounts;
+        }
+
+        return refresh(context);
+    }
+
+    /**
+     * Queries K-9 Mail's content provider and replaces the cached list of accounts.
+     *
+     * <p>This should not be called from the main thread.</p>
+     *
+     * @param context
+     *         Used to retrieve the content resolver.
+     *
+     * @return An immutable list of accounts, or {@code null} in case of an error.
+     */
+    public static List<Account> refresh(Context context) {
+        K9Helper.Session session = K9Helper.openSession(context);
+        try {
+            return refresh(session, 0);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Same as {@link #refresh(Context)}, but uses an existing connection to K-9 Mail's content
+     * provider and gives up if K-9 Mail doesn't answer in time.
+     *
+     * @param timeoutMillis
+     *         Maximum time in milliseconds to wait for K-9 Mail's content provider. {@code 0}
+     *         waits forever.
+     *
+     * @return An immutable list of accounts, or {@code null} in case of an error or timeout.
+     *
+     * @see K9Helper.Session#getAccounts(long)
+     */
+    public static List<Account> refresh(K9Helper.Session session, long timeoutMillis) {
+        int generation;
+        synchronized (sLock) {
+            generation = sGeneration;
+        }
+
+        List<Account> result = session.getAccounts(timeoutMillis);
+        if (result == null) {
+            return null;
+        }
+
+        List<Account> accounts = Collections.unmodifiableList(result);
+        synchronized (sLock) {
+            if (generation == sGeneration) {
+                sAccounts.set(accounts);
+            }
+        }
+
+        return accounts;
+    }
+
+    /**
+     * Returns the estimated number of bytes retained by the cache.
+     */
+    public static long getMemoryFootprint() {
+        return MemoryFootprint.ofAccounts(sAccounts.get());
+    }
+
+    /**
+     * Clears the cache. The next call to {@link #getAccounts(Context)} will query K-9 Mail's
+     * content provider.
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sGeneration++;
+            sAccounts.set(null);
+        }
+    }
+}
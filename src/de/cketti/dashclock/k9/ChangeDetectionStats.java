@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import android.os.SystemClock;
+
+
+/**
+ * Keeps track of how many refreshes a change detection mechanism triggered, and how many of
+ * those were redundant, i.e. didn't change the data displayed by DashClock.
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class ChangeDetectionStats {
+    private static final double MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+    private final String mName;
+    private long mActiveSince = 0;
+    private long mActiveTime = 0;
+    private long mRefreshCount = 0;
+    private long mRedundantRefreshCount = 0;
+
+
+    ChangeDetectionStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Called when the mechanism starts being used.
+     */
+    public synchronized void start() {
+        if (mActiveSince == 0) {
+            mActiveSince = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Called when the mechanism is no longer used.
+     */
+    public synchronized void stop() {
+        if (mActiveSince != 0) {
+            mActiveTime += SystemClock.elapsedRealtime() - mActiveSince;
+            mActiveSince = 0;
+        }
+    }
+
+    /**
+     * Records a refresh triggered by this mechanism.
+     *
+     * @param redundant
+     *         {@code true} if the refresh didn't change the displayed data.
+     */
+    public synchronized void onRefresh(boolean redundant) {
+        mRefreshCount++;
+        if (redundant) {
+            mRedundantRefreshCount++;
+        }
+    }
+
+    /**
+     * Returns the number of redundant refreshes per hour the mechanism was active, or {@code 0}
+     * if it wasn't used yet.
+     */
+    public synchronized double getRedundantRefreshesPerHour() {
+        long activeTime = mActiveTime;
+        if (mActiveSince != 0) {
+            activeTime += SystemClock.elapsedRealtime() - mActiveSince;
+        }
+
+        return (activeTime == 0) ? 0 : mRedundantRefreshCount * MILLIS_PER_HOUR / activeTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d refreshes, %d redundant (%.1f/hour)", mName, mRefreshCount,
+                mRedundantRefreshCount, getRedundantRefreshesPerHour());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+
+/**
+ * Turns bursts of update requests into a single update.
+ *
+ * <p>An update is only triggered once no new request arrived for the duration of the quiet window.
+ * To make sure the displayed data doesn't lag behind during a long burst (e.g. a full sync of a
+ * big account), an update is triggered at the latest when the oldest pending request is older
+ * than the maximum latency.</p>
+ *
+ * <p>All methods must be called from the thread of the {@link Looper} supplied to the
+ * constructor.</p>
+ */
+class CoalescingUpdateScheduler {
+    /**
+     * Called when the pending requests should be turned into an update.
+     */
+    interface Callback {
+        void onScheduledUpdate();
+    }
+
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final long mQuietWindow;
+    private final long mMaxLatency;
+
+    private boolean mPending = false;
+    private long mFirstRequestTime;
+    private long mSuppressedCount = 0;
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPending = false;
+            mCallback.onScheduledUpdate();
+        }
+    };
+
+    /**
+     * @param looper
+     *         The looper used to schedule updates.
+     * @param quietWindow
+     *         Time in milliseconds without new requests after which an update is triggered.
+     * @param maxLatency
+     *         Maximum time in milliseconds an update request is held back.
+     * @param callback
+     *         Called when an update should be performed.
+     */
+    CoalescingUpdateScheduler(Looper looper, long quietWindow, long maxLatency,
+            Callback callback) {
+        mHandler = new Handler(looper);
+        mQuietWindow = quietWindow;
+        mMaxLatency = Math.max(quietWindow, maxLatency);
+        mCallback = callback;
+    }
+
+    /**
+     * Requests an update.
+     *
+     * <p>If there already is a pending request, the two are merged.</p>
+     */
+    public void requestUpdate() {
+        long now = SystemClock.uptimeMillis();
+
+        if (mPending) {
+            mSuppressedCount++;
+            mHandler.removeCallbacks(mUpdateRunnable);
+        } else {
+            mPending = true;
+            mFirstRequestTime = now;
+        }
+
+        long deadline = mFirstRequestTime + mMaxLatency;
+        long updateTime = Math.min(now + mQuietWindow, deadline);
+        mHandler.postAtTime(mUpdateRunnable, updateTime);
+    }
+
+    /**
+     * Drops a pending request without triggering an update.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mUpdateRunnable);
+        mPending = false;
+    }
+
+    /**
+     * Returns the number of requests that were merged into another request.
+     */
+    public long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.content.Intent;
+
+
+/**
+ * Cached result of the checks whether K-9 Mail is installed, set up, and accessible by us.
+ *
+ * <p>Each of these checks is a call to the package manager. Their results only change when the
+ * K-9 Mail package is installed, updated, enabled/disabled (K-9 Mail enables its compose activity
+ * once an account was set up), or removed. The permission to access K-9 Mail's content provider
+ * is granted when installing our package, or K-9 Mail's package (which defines the permission).
+ * So it's enough to call {@link #invalidate()} whenever we receive a package broadcast for K-9
+ * Mail.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public class K9Environment {
+    private static final AtomicReference<K9Environment> sEnvironment =
+            new AtomicReference<K9Environment>();
+
+    /**
+     * Incremented by {@link #invalidate()}. Used to make sure the result of a check that was
+     * running while the cache was invalidated doesn't end up in the cache.
+     */
+    private static int sGeneration = 0;
+    private static final Object sLock = new Object();
+
+    /**
+     * Whether or not K-9 Mail is installed.
+     *
+     * @see K9Helper#isK9Installed(Context)
+     */
+    public final boolean installed;
+
+    /**
+     * Whether or not K-9 Mail is enabled, i.e. an account was set up.
+     *
+     * @see K9Helper#isK9Enabled(Context)
+     */
+    public final boolean enabled;
+
+    /**
+     * Whether or not we have the permission to access K-9 Mail's content provider.
+     *
+     * @see K9Helper#hasK9ReadPermission(Context)
+     */
+    public final boolean hasPermission;
+
+    private final Intent mStartIntent;
+
+
+    private K9Environment(boolean installed, boolean enabled, boolean hasPermission,
+            Intent startIntent) {
+        this.installed = installed;
+        this.enabled = enabled;
+        this.hasPermission = hasPermission;
+        mStartIntent = startIntent;
+    }
+
+    /**
+     * Returns the (cached) state of K-9 Mail.
+     *
+     * @param context
+     *         Used to retrieve the package manager if the cache is empty.
+     */
+    public static K9Environment get(Context context) {
+        K9Environment environment = sEnvironment.get();
+        if (environment != null) {
+            return environment;
+        }
+
+        int generation;
+        synchronized (sLock) {
+            generation = sGeneration;
+        }
+
+        boolean installed = K9Helper.isK9Installed(context);
+        boolean enabled = installed && K9Helper.isK9Enabled(context);
+        boolean hasPermission = installed && K9Helper.hasK9ReadPermission(context);
+        Intent startIntent = (installed) ? K9Helper.getStartK9Intent(context) : null;
+
+        environment = new K9Environment(installed, enabled, hasPermission, startIntent);
+
+        synchronized (sLock) {
+            if (generation == sGeneration) {
+                sEnvironment.set(environment);
+            }
+        }
+
+        return environment;
+    }
+
+    /**
+     * Clears the cache. The next call to {@link #get(Context)} will query the package manager.
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sGeneration++;
+            sEnvironment.set(null);
+        }
+    }
+
+    /**
+     * Returns a new intent to start K-9 Mail, or {@code null} if there is none.
+     *
+     * @see K9Helper#getStartK9Intent(Context)
+     */
+    public Intent getStartK9Intent() {
+        return (mStartIntent == null) ? null : new Intent(mStartIntent);
+    }
+
+    /**
+     * Returns {@code true} if K-9 Mail is installed, enabled, and we have the permission to
+     * access its content provider.
+     */
+    public boolean isAvailableAndSetUp() {
+        return installed && enabled && hasPermission;
+    }
+}
@@ -16,101 +16,598 @@
 
 package de.cketti.dashclock.k9;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.res.Configuration;
+import android.database.ContentObserver;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
+import android.util.Log;
 
 import com.google.android.apps.dashclock.api.DashClockExtension;
 import com.google.android.apps.dashclock.api.ExtensionData;
-
-import de.cketti.dashclock.k9.K9Helper.Account;
+import com.google.android.apps.dashclock.api.UpdateMetrics;
 
 
 public class K9Extension extends DashClockExtension {
+    private static final String TAG = "K9Extension";
+
     private static final String PLAY_STORE_URL_PREFIX =
             "https://play.google.com/store/apps/details?id=";
 
+    /**
+     * Time in milliseconds without K-9 Mail broadcasts after which we update the unread counts.
+     */
+    private static final long UPDATE_QUIET_WINDOW = 2000;
+
+    /**
+     * Maximum time in milliseconds an update is delayed while K-9 Mail keeps sending broadcasts.
+     */
+    static final long UPDATE_MAX_LATENCY = 10000;
+
+    /**
+     * Determines whether to keep track of the unread counts using the information contained in
+     * K-9 Mail's broadcasts. When false, every update queries K-9 Mail's content provider.
+     */
+    private static final boolean INCREMENTAL_UPDATES = true;
+
+    /**
+     * Determines whether to query the unread counts of multiple accounts concurrently when
+     * K-9 Mail doesn't support fetching all unread counts at once.
+     */
+    private static final boolean PARALLEL_UNREAD_QUERIES = true;
+
+    /**
+     * Maximum number of concurrent unread count queries.
+     */
+    private static final int MAX_PARALLEL_UNREAD_QUERIES = 3;
+
+    /**
+     * Time in seconds after which idle query threads are terminated.
+     */
+    private static final long QUERY_THREAD_KEEP_ALIVE = 30;
+
+    /**
+     * Maximum time in milliseconds to wait for K-9 Mail's content provider to return the list of
+     * accounts, and then again for the unread counts. If it takes longer, we display the last
+     * known values.
+     */
+    static final long QUERY_TIMEOUT = 5000;
+
+    /**
+     * Key of the preference selecting how we find out about changes in K-9 Mail.
+     */
+    static final String PREF_CHANGE_DETECTION = "change_detection";
+
+    /**
+     * Listen for K-9 Mail's broadcasts. Enables incremental updates.
+     */
+    static final String CHANGE_DETECTION_BROADCAST = "broadcast";
+
+    /**
+     * Observe K-9 Mail's content provider URIs.
+     */
+    static final String CHANGE_DETECTION_OBSERVER = "observer";
+
+    private CoalescingUpdateScheduler mScheduler;
+    private final UnreadCountTable mUnreadCountTable = new UnreadCountTable();
+    private final AccountFilter mAccountFilter = new AccountFilter();
+
+    private SnapshotStore mSnapshotStore;
+
+    /**
+     * Only accessed from the update thread.
+     */
+    private boolean mSnapshotRestored = false;
+
+    private String mChangeDetection = null;
+    private final ChangeDetectionStats mBroadcastStats =
+            new ChangeDetectionStats(CHANGE_DETECTION_BROADCAST);
+    private final ChangeDetectionStats mObserverStats =
+            new ChangeDetectionStats(CHANGE_DETECTION_OBSERVER);
+    private volatile ChangeDetectionStats mActiveStats = null;
+
+    private final AtomicLong mIncrementalUpdateCounter =
+            getMetrics().counter("incremental_updates");
+    private final AtomicLong mFullUpdateCounter = getMetrics().counter("full_updates");
+    private final AtomicLong mStaleUnreadCountCounter =
+            getMetrics().counter("stale_unread_counts");
+    private final UpdateMetrics.Histogram mAccountQueryHistogram =
+            getMetrics().histogram("query_accounts");
+    private final UpdateMetrics.Histogram mUnreadCountsHistogram =
+            getMetrics().histogram("query_unread_counts");
+    private final UpdateMetrics.Histogram mAccountUnreadHistogram =
+            getMetrics().histogram("query_account_unread");
+
+    /**
+     * Runs the queries to K-9 Mail's content provider, so the update thread can stop waiting for
+     * them when {@link #QUERY_TIMEOUT} has passed.
+     */
+    private ThreadPoolExecutor mQueryExecutor;
+
+    /**
+     * Used from the update thread. Guarded by itself so {@link #onTrimMemory(int)} can release
+     * its buffer.
+     */
+    private final UnreadAggregator mAggregator = new UnreadAggregator();
+    private final UnreadRenderer mRenderer = new UnreadRenderer(this);
+
+    private volatile int mLastTrimLevel = -1;
+
     private BroadcastReceiver mReceiver = new BroadcastReceiver() {
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            updateDataInBackground(UPDATE_REASON_CONTENT_CHANGED);
+            String action = intent.getAction();
+            if (K9Helper.BroadcastIntents.ACTION_EMAIL_RECEIVED.equals(action)) {
+                applyUnreadCountDelta(intent, 1);
+            } else if (K9Helper.BroadcastIntents.ACTION_EMAIL_DELETED.equals(action)) {
+                // We can't tell whether the deleted message was unread
+                mUnreadCountTable.invalidate();
+            } else {
+                AccountRepository.invalidate();
+                mUnreadCountTable.invalidate();
+            }
+
+            mScheduler.requestUpdate();
+        }
+    };
+
+    private ContentObserver mObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null || K9Helper.ACCOUNTS_URI.equals(uri)) {
+                AccountRepository.invalidate();
+            }
+            mUnreadCountTable.invalidate();
+
+            mScheduler.requestUpdate();
+        }
+    };
+
+    private OnSharedPreferenceChangeListener mPreferenceListener =
+            new OnSharedPreferenceChangeListener() {
+
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+            if (PREF_CHANGE_DETECTION.equals(key)) {
+                setChangeDetection(sp.getString(key, CHANGE_DETECTION_BROADCAST));
+            } else if (AccountFilter.PREF_ACCOUNTS_LIST.equals(key)) {
+                mAccountFilter.setEnabledAccounts(sp.getStringSet(key, null));
+                mUnreadCountTable.invalidate();
+                updateDataInBackground(UPDATE_REASON_SETTINGS_CHANGED);
+            }
+        }
+    };
+
+    private BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri uri = intent.getData();
+            if (uri == null || !K9Helper.PACKAGE_NAME.equals(uri.getSchemeSpecificPart())) {
+                return;
+            }
+
+            K9Helper.resetProviderFeatures();
+            K9Environment.invalidate();
+            AccountRepository.invalidate();
+            mUnreadCountTable.invalidate();
+
+            mScheduler.requestUpdate();
         }
     };
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mScheduler = new CoalescingUpdateScheduler(Looper.getMainLooper(), UPDATE_QUIET_WINDOW,
+                UPDATE_MAX_LATENCY, new CoalescingUpdateScheduler.Callback() {
+                    @Override
+                    public void onScheduledUpdate() {
+                        updateDataInBackground(UPDATE_REASON_CONTENT_CHANGED);
+                    }
+                });
+
+        mSnapshotStore = new SnapshotStore(this);
+
+        int queryThreads = (PARALLEL_UNREAD_QUERIES) ? MAX_PARALLEL_UNREAD_QUERIES : 1;
+        mQueryExecutor = new ThreadPoolExecutor(queryThreads, queryThreads,
+                QUERY_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "K9Extension:query");
+                    }
+                });
+        mQueryExecutor.allowCoreThreadTimeOut(true);
+    }
+
     @Override
     protected void onInitialize(boolean isReconnect) {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(K9Helper.BroadcastIntents.ACTION_EMAIL_RECEIVED);
-        filter.addAction(K9Helper.BroadcastIntents.ACTION_EMAIL_DELETED);
-        filter.addAction(K9Helper.BroadcastIntents.ACTION_REFRESH_OBSERVER);
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+
+        registerReceiver(mPackageReceiver, packageFilter);
 
-        registerReceiver(mReceiver, filter);
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
+        sp.registerOnSharedPreferenceChangeListener(mPreferenceListener);
+        mAccountFilter.setEnabledAccounts(sp.getStringSet(AccountFilter.PREF_ACCOUNTS_LIST, null));
+        setChangeDetection(sp.getString(PREF_CHANGE_DETECTION, CHANGE_DETECTION_BROADCAST));
     }
 
     @Override
     public void onDestroy() {
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
+        setChangeDetection(null);
+
         try {
-            unregisterReceiver(mReceiver);
+            unregisterReceiver(mPackageReceiver);
         } catch (Exception e) { /* ignore */ }
 
+        mScheduler.cancel();
+        mSnapshotStore.close();
+        mQueryExecutor.shutdownNow();
+
+        Log.i(TAG, "Suppressed " + mScheduler.getSuppressedCount() + " redundant updates");
+        Log.i(TAG, mBroadcastStats.toString());
+        Log.i(TAG, mObserverStats.toString());
+
         super.onDestroy();
     }
 
     @Override
-    protected void onUpdateData(int reason) {
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        mRenderer.invalidate();
+    }
+
+    /**
+     * Releases caches depending on how much memory the system needs. Everything dropped here is
+     * recreated by the next update, at increasing cost:
+     * <ol>
+     * <li>render buffers and the copy of the last saved snapshot</li>
+     * <li>unread counts and the filtered account list, so the next update performs a full
+     * query</li>
+     * <li>the account list, so the next update also has to query the accounts</li>
+     * </ol>
+     * <p>See {@link #getTrimTier(int)} for the tiers released at each level.</p>
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mLastTrimLevel = level;
+
+        int tier = getTrimTier(level);
+        if (tier >= 1) {
+            mRenderer.invalidate();
+            synchronized (mAggregator) {
+                mAggregator.releaseBuffer();
+            }
+            mSnapshotStore.trimMemory();
+        }
+
+        if (tier >= 2) {
+            mUnreadCountTable.clear();
+            mAccountFilter.trimMemory();
+        }
+
+        if (tier >= 3) {
+            AccountRepository.invalidate();
+        }
+    }
 
-        if (!isK9AvailableAndSetUp()) {
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+
+        writer.println("Coalesced update requests: " + mScheduler.getSuppressedCount());
+        writer.println("K-9 Mail provider calls: " + K9Helper.getProviderCallCount());
+        writer.println("K-9 Mail provider timeouts: " + K9Helper.getTimeoutCount());
+        writer.println("Change detection (active: " + mChangeDetection + ")");
+        writer.println("  " + mBroadcastStats);
+        writer.println("  " + mObserverStats);
+
+        int bufferCapacity;
+        synchronized (mAggregator) {
+            bufferCapacity = mAggregator.getBufferCapacity();
+        }
+        writer.println("Caches (estimated bytes, last trim level: " + mLastTrimLevel + ")");
+        writer.println("  render buffer: " + MemoryFootprint.ofCharBuffer(bufferCapacity));
+        writer.println("  renderer: " + mRenderer.getMemoryFootprint());
+        writer.println("  snapshot store: " + mSnapshotStore.getMemoryFootprint());
+        writer.println("  unread counts: " + mUnreadCountTable.getMemoryFootprint());
+        writer.println("  account filter: " + mAccountFilter.getMemoryFootprint());
+        writer.println("  accounts: " + AccountRepository.getMemoryFootprint());
+    }
+
+    /**
+     * Switches the mechanism used to find out about changes in K-9 Mail.
+     *
+     * @param changeDetection
+     *         {@link #CHANGE_DETECTION_BROADCAST}, {@link #CHANGE_DETECTION_OBSERVER}, or
+     *         {@code null} to stop listening for changes.
+     */
+    private synchronized void setChangeDetection(String changeDetection) {
+        if (changeDetection != null && changeDetection.equals(mChangeDetection)) {
             return;
         }
 
-        int unreadCount = 0;
-        StringBuilder body = new StringBuilder();
+        if (CHANGE_DETECTION_BROADCAST.equals(mChangeDetection)) {
+            try {
+                unregisterReceiver(mReceiver);
+            } catch (Exception e) { /* ignore */ }
+            mBroadcastStats.stop();
+        } else if (CHANGE_DETECTION_OBSERVER.equals(mChangeDetection)) {
+            getContentResolver().unregisterContentObserver(mObserver);
+            mObserverStats.stop();
+        }
 
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        Set<String> enabledAccounts = sp.getStringSet("accounts_list", null);
+        mActiveStats = null;
+        mChangeDetection = null;
+        if (changeDetection == null) {
+            return;
+        }
 
-        List<Account> accounts = K9Helper.getAccounts(this);
-        if (accounts != null) {
-            for (Account account : accounts) {
-                if (enabledAccounts != null && !enabledAccounts.contains(account.uuid)) {
-                    continue;
-                }
+        // We might have missed changes while switching
+        mUnreadCountTable.invalidate();
 
-                int accountUnread = K9Helper.getUnreadCount(this, account);
-                unreadCount += accountUnread;
+        if (CHANGE_DETECTION_OBSERVER.equals(changeDetection)) {
+            // The account list only changes when an account is added, removed, or edited.
+            // Unread counts are reported per account, i.e. on descendants of the base URI.
+            getContentResolver().registerContentObserver(K9Helper.ACCOUNTS_URI, false, mObserver);
+            getContentResolver().registerContentObserver(K9Helper.ACCOUNT_UNREAD_URI, true,
+                    mObserver);
 
-                if (accountUnread > 0) {
-                    if (body.length() > 0) {
-                        body.append('\n');
-                    }
+            mChangeDetection = CHANGE_DETECTION_OBSERVER;
+            mActiveStats = mObserverStats;
+        } else {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(K9Helper.BroadcastIntents.ACTION_EMAIL_RECEIVED);
+            filter.addAction(K9Helper.BroadcastIntents.ACTION_EMAIL_DELETED);
+            filter.addAction(K9Helper.BroadcastIntents.ACTION_REFRESH_OBSERVER);
 
-                    body.append(
-                            getString(R.string.account_name_format, account.name, accountUnread));
-                }
+            registerReceiver(mReceiver, filter);
+
+            mChangeDetection = CHANGE_DETECTION_BROADCAST;
+            mActiveStats = mBroadcastStats;
+        }
+
+        mActiveStats.start();
+    }
+
+    @Override
+    protected void onUpdateData(int reason) {
+
+        K9Environment environment = K9Environment.get(this);
+        if (!isK9AvailableAndSetUp(environment)) {
+            return;
+        }
+
+        if (!mSnapshotRestored) {
+            // Show what we displayed before the process was killed while we query K-9 Mail
+            mSnapshotRestored = true;
+            publishSavedSnapshot();
+        }
+
+        UnreadCountTable.Snapshot unreadCounts = null;
+        if (INCREMENTAL_UPDATES && (reason == UPDATE_REASON_CONTENT_CHANGED ||
+                reason == UPDATE_REASON_SCREEN_ON)) {
+            unreadCounts = mUnreadCountTable.getSnapshot();
+        }
+
+        if (unreadCounts == null) {
+            mFullUpdateCounter.incrementAndGet();
+            unreadCounts = queryUnreadCounts();
+            if (unreadCounts.isStale() && isUpdateSuperseded()) {
+                // We didn't learn anything new. The newer update runs next and publishes.
+                return;
             }
+        } else {
+            mIncrementalUpdateCounter.incrementAndGet();
         }
 
-        String title = getResources().getQuantityString(
-                R.plurals.unread_title, unreadCount, unreadCount);
+        UnreadAggregator.Summary summary;
+        synchronized (mAggregator) {
+            summary = mAggregator.aggregate(unreadCounts.accounts, unreadCounts.unreadCounts,
+                    unreadCounts.stale, mRenderer);
+        }
+
+        int unreadCount = summary.unreadCount;
+        String title = mRenderer.getTitle(unreadCount);
 
         ExtensionData data = new ExtensionData()
-                .visible(unreadCount > 0)
+                .visible(summary.isVisible())
                 .icon(R.drawable.ic_envelope)
                 .status(Integer.toString(unreadCount))
                 .expandedTitle(title)
-                .expandedBody(body.toString())
-                .clickIntent(K9Helper.getStartK9Intent(this));
+                .expandedBody(summary.body)
+                .clickIntent(environment.getStartK9Intent());
 
+        long skippedPublishCount = getSkippedPublishCount();
         publishUpdate(data);
+        mSnapshotStore.save(data, unreadCounts);
+
+        ChangeDetectionStats stats = mActiveStats;
+        if (reason == UPDATE_REASON_CONTENT_CHANGED && stats != null) {
+            stats.onRefresh(getSkippedPublishCount() != skippedPublishCount);
+        }
+    }
+
+    /**
+     * Publishes the data saved by {@link SnapshotStore} and uses the saved unread counts as last
+     * known values.
+     */
+    private void publishSavedSnapshot() {
+        SnapshotStore.Snapshot snapshot = mSnapshotStore.load();
+        if (snapshot == null) {
+            return;
+        }
+
+        mUnreadCountTable.restore(snapshot.unreadCounts.accounts,
+                snapshot.unreadCounts.unreadCounts.clone());
+        publishUpdate(snapshot.data);
+    }
+
+    /**
+     * Queries K-9 Mail's content provider for the unread counts of all displayed accounts and
+     * stores the result in {@link #mUnreadCountTable}.
+     *
+     * <p>All queries of one update share a single connection to the content provider. Queries
+     * that haven't finished when the update is superseded are abandoned; their accounts get the
+     * last known (stale) unread counts, just like on a timeout. Results of queries that did
+     * finish are kept.</p>
+     *
+     * @return The unread counts.
+     */
+    private UnreadCountTable.Snapshot queryUnreadCounts() {
+        K9Helper.Session session = K9Helper.openSession(this, getUpdateCancellationSignal(),
+                mQueryExecutor);
+        try {
+            return queryUnreadCounts(session);
+        } finally {
+            session.close();
+        }
+    }
+
+    private UnreadCountTable.Snapshot queryUnreadCounts(K9Helper.Session session) {
+        long modificationCount = mUnreadCountTable.getModificationCount();
+
+        List<Account> accounts = AccountRepository.getCachedAccounts();
+        if (accounts == null) {
+            long start = System.nanoTime();
+            accounts = AccountRepository.refresh(session, QUERY_TIMEOUT);
+            mAccountQueryHistogram.record(System.nanoTime() - start);
+        }
+        if (accounts == null) {
+            mUnreadCountTable.invalidate();
+
+            // Fall back to the last known (stale) unread counts
+            UnreadCountTable.Snapshot lastKnown = mUnreadCountTable.getLastKnownSnapshot();
+            if (lastKnown != null) {
+                int count = lastKnown.accounts.size();
+                mStaleUnreadCountCounter.addAndGet(count);
+
+                boolean[] stale = new boolean[count];
+                Arrays.fill(stale, true);
+                return new UnreadCountTable.Snapshot(lastKnown.accounts, lastKnown.unreadCounts,
+                        stale);
+            }
+
+            return new UnreadCountTable.Snapshot(Collections.<Account>emptyList(), new int[0],
+                    new boolean[0]);
+        }
+
+        List<Account> displayedAccounts = mAccountFilter.filter(accounts);
+
+        long start = System.nanoTime();
+        int[] unreadCounts = session.getUnreadCounts(displayedAccounts, QUERY_TIMEOUT,
+                mAccountUnreadHistogram);
+        mUnreadCountsHistogram.record(System.nanoTime() - start);
+
+        // Fall back to the last known (stale) value for accounts that timed out
+        boolean[] stale = null;
+        for (int i = 0, len = unreadCounts.length; i < len; i++) {
+            if (unreadCounts[i] == K9Helper.UNREAD_COUNT_UNKNOWN) {
+                int lastKnown = mUnreadCountTable.getLastKnownUnreadCount(
+                        displayedAccounts.get(i).uuid);
+                unreadCounts[i] = Math.max(lastKnown, 0);
+                mStaleUnreadCountCounter.incrementAndGet();
+
+                if (stale == null) {
+                    stale = new boolean[len];
+                }
+                stale[i] = true;
+            }
+        }
+
+        mUnreadCountTable.update(displayedAccounts, unreadCounts.clone(), modificationCount);
+        if (stale != null) {
+            // Make sure the next update queries K-9 Mail's content provider again
+            mUnreadCountTable.invalidate();
+        }
+
+        return new UnreadCountTable.Snapshot(displayedAccounts, unreadCounts, stale);
+    }
+
+    /**
+     * Maps a trim level to the number of cache tiers {@link #onTrimMemory(int)} releases.
+     *
+     * <p>The levels don't form a single scale: the background levels are larger than the running
+     * levels, but a process in the background is under less pressure than a running one at
+     * {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL}. And
+     * {@link ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN} only means our settings activity was
+     * hidden, which doesn't affect the extension's caches.</p>
+     * <ul>
+     * <li>{@code RUNNING_MODERATE}, {@code UI_HIDDEN}: nothing</li>
+     * <li>{@code RUNNING_LOW}, {@code BACKGROUND}: tier 1</li>
+     * <li>{@code RUNNING_CRITICAL}, {@code MODERATE}: tiers 1 and 2</li>
+     * <li>{@code COMPLETE}: all tiers</li>
+     * </ul>
+     */
+    private static int getTrimTier(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 3;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 1;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 1;
+        }
+
+        // TRIM_MEMORY_RUNNING_MODERATE
+        return 0;
+    }
+
+    private void applyUnreadCountDelta(Intent intent, int delta) {
+        int accountNumber = K9Helper.getAccountNumber(intent);
+        if (accountNumber == -1) {
+            mUnreadCountTable.invalidate();
+        } else {
+            mUnreadCountTable.applyDelta(accountNumber, delta);
+        }
     }
 
     private void displayErrorMessage(String errorMessage, Intent intent) {
@@ -125,19 +622,15 @@ public class K9Extension extends DashClockExtension {
         publishUpdate(data);
     }
 
-    private boolean isK9AvailableAndSetUp() {
-        boolean installed = K9Helper.isK9Installed(this);
-        boolean enabled = K9Helper.isK9Enabled(this);
-        boolean hasPermission = K9Helper.hasK9ReadPermission(this);
-
-        if (!installed) {
+    private boolean isK9AvailableAndSetUp(K9Environment environment) {
+        if (!environment.installed) {
             displayErrorMessage(getString(R.string.error_k9_not_installed), getPlayStoreIntent());
             return false;
-        } else if (!enabled) {
+        } else if (!environment.enabled) {
             displayErrorMessage(getString(R.string.error_k9_not_enabled),
-                    K9Helper.getStartK9Intent(this));
+                    environment.getStartK9Intent());
             return false;
-        } else if (!hasPermission) {
+        } else if (!environment.hasPermission) {
             displayErrorMessage(getString(R.string.error_k9_no_permission,
                     getString(R.string.app_name)), getAppInfoIntent());
             return false;
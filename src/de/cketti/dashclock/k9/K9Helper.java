@@ -18,8 +18,22 @@ package de.cketti.dashclock.k9;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
@@ -28,8 +42,14 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.DeadObjectException;
+import android.os.RemoteException;
 import android.util.Log;
 
+import com.google.android.apps.dashclock.api.UpdateMetrics;
+
 
 /**
  * Helper class to interface with K-9 Mail.
@@ -66,6 +86,39 @@ public class K9Helper {
     public static final Uri ACCOUNT_UNREAD_URI =
             Uri.withAppendedPath(CONTENT_URI, "account_unread");
 
+    /**
+     * Name of the provider method that returns the unread counts of all accounts in one call.
+     *
+     * <p>Versions of K-9 Mail supporting this method return a {@link Bundle} that maps each
+     * account's UUID to the number of unread messages in that account.</p>
+     *
+     * @see android.content.ContentResolver#call(Uri, String, String, Bundle)
+     */
+    public static final String METHOD_GET_UNREAD_COUNTS = "get_unread_counts";
+
+    /**
+     * Set once the installed version of K-9 Mail turned out not to support
+     * {@link #METHOD_GET_UNREAD_COUNTS}, so we don't try again on every update.
+     */
+    private static volatile boolean sBulkUnreadCountsUnsupported = false;
+
+    /**
+     * Returned by {@link Session#getUnreadCount(Account, long)} and
+     * {@link #getUnreadCounts(Context, List, long, ExecutorService, UpdateMetrics.Histogram)}
+     * if the unread count couldn't be retrieved.
+     */
+    public static final int UNREAD_COUNT_UNKNOWN = -1;
+
+    /**
+     * Number of calls made to K-9 Mail's content provider.
+     */
+    private static final AtomicLong sProviderCallCount = new AtomicLong();
+
+    /**
+     * Number of queries that were abandoned because they exceeded their deadline.
+     */
+    private static final AtomicLong sTimeoutCount = new AtomicLong();
+
 
     private static final Uri getAccountUnreadUri(int accountNumber) {
         return Uri.withAppendedPath(ACCOUNT_UNREAD_URI, Integer.toString(accountNumber));
@@ -168,63 +221,448 @@ public class K9Helper {
          */
         public static final String ACTION_REFRESH_OBSERVER =
                 "com.fsck.k9.intent.action.REFRESH_OBSERVER";
+
+        /**
+         * Extra for {@link #ACTION_EMAIL_RECEIVED} and {@link #ACTION_EMAIL_DELETED}: The name of
+         * the account the message belongs to.
+         *
+         * <p>The data URI of these broadcasts has the form
+         * {@code email://messages/<account number>/<folder>/<uid>}. Use
+         * {@link K9Helper#getAccountNumber(Intent)} to extract the account number.</p>
+         */
+        public static final String EXTRA_ACCOUNT = "com.fsck.k9.intent.extra.ACCOUNT";
+
+        /**
+         * Extra for {@link #ACTION_EMAIL_RECEIVED} and {@link #ACTION_EMAIL_DELETED}: The name of
+         * the folder the message is stored in.
+         */
+        public static final String EXTRA_FOLDER = "com.fsck.k9.intent.extra.FOLDER";
+    }
+
+    /**
+     * Queries K-9 Mail's content provider to retrieve a list of accounts.
+     *
+     * <p>This should not be called from the main thread.</p>
+     *
+     * @param context
+     *         Used to retrieve the content resolver.
+     *
+     * @return A (possibly empty) list of {@link Account} instances, or {@code null} in case of an
+     *         error.
+     */
+    public static final List<Account> getAccounts(Context context) {
+        Session session = openSession(context);
+        try {
+            return session.getAccounts(0);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Query K-9 Mail's content provider to retrieve the number of unread messages in the supplied
+     * account.
+     *
+     * @param context
+     *         Used to retrieve the content resolver.
+     * @param account
+     *         The account to get the unread messages for. Use {@link #getAccounts(Context)} to
+     *         retrieve an {@link Account} instance. Must not be {@code null}.
+     *
+     * @return The number of unread messages in that account. Or {@code 0} if something went wrong.
+     */
+    public static final int getUnreadCount(Context context, Account account) {
+        Session session = openSession(context);
+        try {
+            int unreadCount = session.getUnreadCount(account, 0);
+            return (unreadCount == UNREAD_COUNT_UNKNOWN) ? 0 : unreadCount;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Query K-9 Mail's content provider to retrieve the number of unread messages in all of the
+     * supplied accounts.
+     *
+     * <p>If the installed version of K-9 Mail supports {@link #METHOD_GET_UNREAD_COUNTS} all
+     * unread counts are fetched with a single provider call. Otherwise this falls back to calling
+     * {@link #getUnreadCount(Context, Account)} for each account.</p>
+     *
+     * <p>This should not be called from the main thread.</p>
+     *
+     * @param context
+     *         Used to retrieve the content resolver.
+     * @param accounts
+     *         The accounts to get the unread messages for. Must not be {@code null}.
+     *
+     * @return An array containing the number of unread messages of each account, in the order of
+     *         {@code accounts}. An entry is {@code 0} if something went wrong.
+     */
+    public static final int[] getUnreadCounts(Context context, List<Account> accounts) {
+        int[] unreadCounts = getUnreadCounts(context, accounts, 0, null, null);
+        for (int i = 0; i < unreadCounts.length; i++) {
+            if (unreadCounts[i] == UNREAD_COUNT_UNKNOWN) {
+                unreadCounts[i] = 0;
+            }
+        }
+        return unreadCounts;
+    }
+
+    /**
+     * Same as {@link #getUnreadCounts(Context, List)}, but optionally running the per-account
+     * queries concurrently and with a deadline.
+     *
+     * @see #openSession(Context, CancellationSignal, ExecutorService)
+     * @see Session#getUnreadCounts(List, long, UpdateMetrics.Histogram)
+     */
+    public static final int[] getUnreadCounts(Context context, List<Account> accounts,
+            long timeoutMillis, ExecutorService executor, UpdateMetrics.Histogram queryTimes) {
+        Session session = openSession(context, null, executor);
+        try {
+            return session.getUnreadCounts(accounts, timeoutMillis, queryTimes);
+        } finally {
+            session.close();
+        }
     }
 
     /**
-     * Stores information about a K-9 Mail account.
+     * Opens a connection to K-9 Mail's content provider that can be used for multiple queries.
+     *
+     * <p>Queries run on the calling thread and can't time out. The caller must call
+     * {@link Session#close()} when done.</p>
+     *
+     * @param context
+     *         Used to retrieve the content resolver.
+     */
+    public static final Session openSession(Context context) {
+        return new Session(context.getContentResolver(), null, null);
+    }
+
+    /**
+     * Same as {@link #openSession(Context)}, but queries run on {@code executor} so they can
+     * time out, and they are abandoned when {@code cancellationSignal} is canceled.
+     *
+     * @param cancellationSignal
+     *         Abandons all current and future queries of the session. May be {@code null}.
+     * @param executor
+     *         Runs the queries of the session. An abandoned query occupies its thread until
+     *         K-9 Mail answers. If this is {@code null}, queries run on the calling thread.
+     */
+    public static final Session openSession(Context context,
+            CancellationSignal cancellationSignal, ExecutorService executor) {
+        return new Session(context.getContentResolver(), cancellationSignal, executor);
+    }
+
+    /**
+     * Returns the number of calls made to K-9 Mail's content provider since the process was
+     * started.
+     *
+     * <p>Useful to verify how many queries an update costs.</p>
      */
-    public static class Account {
+    public static long getProviderCallCount() {
+        return sProviderCallCount.get();
+    }
+
+    /**
+     * Returns the number of queries that were canceled because K-9 Mail didn't answer in time.
+     */
+    public static long getTimeoutCount() {
+        return sTimeoutCount.get();
+    }
+
+    /**
+     * Forget what we know about the features supported by the installed version of K-9 Mail.
+     *
+     * <p>Call this when the K-9 Mail package was updated.</p>
+     */
+    static void resetProviderFeatures() {
+        sBulkUnreadCountsUnsupported = false;
+    }
+
+    /**
+     * A connection to K-9 Mail's content provider that is kept open for multiple queries.
+     *
+     * <p>Every query through {@link ContentResolver} looks up the provider by its authority and
+     * acquires and releases a reference to it. A session acquires an (unstable)
+     * {@link ContentProviderClient} once and runs all queries through it. If K-9 Mail's process
+     * dies in the meantime the session transparently acquires a new client.</p>
+     *
+     * <p>A query to K-9 Mail's content provider is a blocking binder call, and K-9 Mail ignores
+     * {@link CancellationSignal}s. So if the session was opened with an executor, queries run on
+     * that executor while the calling thread waits for the result until the query's deadline
+     * passes. A query that took too long is abandoned; it keeps running in the background until
+     * K-9 Mail answers, and its result is discarded. Without an executor, queries run on the
+     * calling thread and can't time out.</p>
+     *
+     * <p>A session is meant to be used for one update cycle. If the update is superseded, the
+     * session's cancellation signal abandons all of its queries. Those queries return the same
+     * value as on a timeout.</p>
+     *
+     * <p>This class is thread-safe, so queries may run concurrently. Call {@link #close()} when
+     * done.</p>
+     */
+    public static class Session {
+        private final ContentResolver mContentResolver;
+        private final CancellationSignal mCancellationSignal;
+        private final ExecutorService mExecutor;
+        private ContentProviderClient mClient;
+        private boolean mClosed = false;
+        private boolean mCanceled = false;
+        private final Set<Future<?>> mRunningQueries = new HashSet<Future<?>>();
+
+
+        Session(ContentResolver contentResolver, CancellationSignal cancellationSignal,
+                ExecutorService executor) {
+            mContentResolver = contentResolver;
+            mCancellationSignal = cancellationSignal;
+            mExecutor = executor;
+
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        cancelQueries();
+                    }
+                });
+            }
+        }
+
         /**
-         * The account number.
+         * Queries K-9 Mail's content provider to retrieve a list of accounts.
+         *
+         * <p>This should not be called from the main thread.</p>
+         *
+         * @param timeoutMillis
+         *         Maximum time in milliseconds to wait for K-9 Mail's content provider. {@code 0}
+         *         waits forever. Only used if the session has an executor.
+         *
+         * @return A (possibly empty) list of {@link Account} instances, or {@code null} in case
+         *         of an error or timeout.
          */
-        public final int number;
+        public List<Account> getAccounts(long timeoutMillis) {
+            try {
+                return runQuery(new Callable<List<Account>>() {
+                    @Override
+                    public List<Account> call() throws Exception {
+                        return queryAccounts();
+                    }
+                }, getDeadline(timeoutMillis));
+            } catch (TimeoutException e) {
+                sTimeoutCount.incrementAndGet();
+                Log.w("K9Helper", "Timeout while fetching the list of accounts");
+                return null;
+            } catch (CancellationException e) {
+                return null;
+            } catch (Exception e) {
+                Log.e("K9Helper", "Something went wrong while fetching the list of accounts", e);
+                return null;
+            }
+        }
 
         /**
-         * The name of the account.
+         * Query K-9 Mail's content provider to retrieve the number of unread messages in the
+         * supplied account.
+         *
+         * @param account
+         *         The account to get the unread messages for. Must not be {@code null}.
+         * @param timeoutMillis
+         *         Maximum time in milliseconds to wait for K-9 Mail's content provider. {@code 0}
+         *         waits forever. Only used if the session has an executor.
+         *
+         * @return The number of unread messages in that account, or
+         *         {@link #UNREAD_COUNT_UNKNOWN} if something went wrong or the query timed out.
          */
-        public final String name;
+        public int getUnreadCount(Account account, long timeoutMillis) {
+            return getUnreadCount(account, getDeadline(timeoutMillis), null);
+        }
 
         /**
-         * The account's UUID.
+         * Query K-9 Mail's content provider to retrieve the number of unread messages in all of
+         * the supplied accounts.
+         *
+         * <p>If the installed version of K-9 Mail supports {@link #METHOD_GET_UNREAD_COUNTS} all
+         * unread counts are fetched with a single provider call. Otherwise each account is
+         * queried separately. If the session has an executor, those queries are submitted to it
+         * and run concurrently; the size of the executor's thread pool limits the number of
+         * concurrent queries. This blocks until all queries are finished or the deadline
+         * passed.</p>
+         *
+         * @param accounts
+         *         The accounts to get the unread messages for. Must not be {@code null}.
+         * @param timeoutMillis
+         *         Maximum time in milliseconds to wait for all unread counts. {@code 0} waits
+         *         forever. Only used if the session has an executor.
+         * @param queryTimes
+         *         Receives the duration of each per-account query. May be {@code null}.
+         *
+         * @return An array containing the number of unread messages of each account, in the
+         *         order of {@code accounts}. An entry is {@link #UNREAD_COUNT_UNKNOWN} if
+         *         something went wrong or the query timed out.
          */
-        public final String uuid;
+        public int[] getUnreadCounts(List<Account> accounts, long timeoutMillis,
+                UpdateMetrics.Histogram queryTimes) {
+            long deadline = getDeadline(timeoutMillis);
+
+            int[] unreadCounts = getUnreadCountsInBulk(accounts, deadline);
+            if (unreadCounts != null) {
+                return unreadCounts;
+            }
+
+            if (mExecutor == null) {
+                return getUnreadCountsSequentially(accounts, queryTimes);
+            }
+
+            return getUnreadCountsInParallel(accounts, deadline, queryTimes);
+        }
 
         /**
-         * RGB value of the account's color.
+         * Releases the connection to K-9 Mail's content provider. The session can't be used
+         * afterwards. Queries that are still running in the background are abandoned.
          */
-        public final int color;
+        public void close() {
+            // Not holding the lock. This waits for a running cancel listener to finish.
+            if (mCancellationSignal != null) {
+                mCancellationSignal.setOnCancelListener(null);
+            }
+
+            synchronized (this) {
+                mClosed = true;
+                if (mClient != null) {
+                    mClient.release();
+                    mClient = null;
+                }
+            }
+        }
+
+        private int[] getUnreadCountsSequentially(List<Account> accounts,
+                UpdateMetrics.Histogram queryTimes) {
+            int len = accounts.size();
+            int[] unreadCounts = new int[len];
+            for (int i = 0; i < len; i++) {
+                unreadCounts[i] = getUnreadCount(accounts.get(i), 0, queryTimes);
+            }
+
+            return unreadCounts;
+        }
+
+        private int[] getUnreadCountsInParallel(List<Account> accounts, long deadline,
+                UpdateMetrics.Histogram queryTimes) {
+            int len = accounts.size();
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>(len);
+            for (Account account : accounts) {
+                results.add(startQuery(createUnreadCountQuery(account, queryTimes)));
+            }
 
-        Account(int number, String name, String uuid, int color) {
-            this.number = number;
-            this.name = name;
-            this.uuid = uuid;
-            this.color = color;
+            int[] unreadCounts = new int[len];
+            for (int i = 0; i < len; i++) {
+                unreadCounts[i] = awaitUnreadCount(results.get(i), accounts.get(i), deadline);
+            }
+
+            return unreadCounts;
+        }
+
+        private int getUnreadCount(Account account, long deadline,
+                UpdateMetrics.Histogram queryTimes) {
+            Callable<Integer> query = createUnreadCountQuery(account, queryTimes);
+            if (mExecutor == null) {
+                if (isCanceled()) {
+                    return UNREAD_COUNT_UNKNOWN;
+                }
+
+                try {
+                    return query.call();
+                } catch (Exception e) {
+                    Log.e("K9Helper", "Something went wrong while fetching the unread count for " +
+                            account.name + " (" + account.uuid + ")", e);
+                    return UNREAD_COUNT_UNKNOWN;
+                }
+            }
+
+            return awaitUnreadCount(startQuery(query), account, deadline);
+        }
+
+        private int awaitUnreadCount(Future<Integer> result, Account account, long deadline) {
+            try {
+                return await(result, deadline);
+            } catch (TimeoutException e) {
+                sTimeoutCount.incrementAndGet();
+                Log.w("K9Helper", "Timeout while fetching the unread count for " +
+                        account.name + " (" + account.uuid + ")");
+                return UNREAD_COUNT_UNKNOWN;
+            } catch (CancellationException e) {
+                return UNREAD_COUNT_UNKNOWN;
+            } catch (Exception e) {
+                Log.e("K9Helper", "Something went wrong while fetching the unread count for " +
+                        account.name + " (" + account.uuid + ")", e);
+                return UNREAD_COUNT_UNKNOWN;
+            }
         }
 
         /**
-         * Returns the account's name.
+         * Fetches all unread counts with one provider call.
+         *
+         * @return The unread counts, or {@code null} if the accounts have to be queried one by
+         *         one. On timeout all unread counts are {@link #UNREAD_COUNT_UNKNOWN}; K-9 Mail
+         *         is busy and the per-account queries would time out as well.
          */
-        @Override
-        public String toString() {
-            return name;
+        private int[] getUnreadCountsInBulk(List<Account> accounts, long deadline) {
+            if (sBulkUnreadCountsUnsupported) {
+                return null;
+            }
+
+            Bundle result;
+            try {
+                result = runQuery(new Callable<Bundle>() {
+                    @Override
+                    public Bundle call() throws Exception {
+                        return callProvider(METHOD_GET_UNREAD_COUNTS);
+                    }
+                }, deadline);
+            } catch (UnsupportedOperationException e) {
+                // K-9 Mail rejected the method
+                sBulkUnreadCountsUnsupported = true;
+                return null;
+            } catch (TimeoutException e) {
+                sTimeoutCount.incrementAndGet();
+                Log.w("K9Helper", "Timeout while fetching the unread counts of all accounts");
+                return createUnknownUnreadCounts(accounts.size());
+            } catch (CancellationException e) {
+                return createUnknownUnreadCounts(accounts.size());
+            } catch (Exception e) {
+                // K-9 Mail might be restarting or not be reachable right now. Try again next time.
+                Log.w("K9Helper", "Couldn't fetch the unread counts of all accounts", e);
+                return null;
+            }
+
+            if (result == null) {
+                // That's what ContentProvider.call() returns if it isn't overridden, i.e. older
+                // versions of K-9 Mail don't know about this method
+                sBulkUnreadCountsUnsupported = true;
+                return null;
+            }
+
+            int len = accounts.size();
+            int[] unreadCounts = new int[len];
+            for (int i = 0; i < len; i++) {
+                Account account = accounts.get(i);
+                if (!result.containsKey(account.uuid)) {
+                    // The account list changed in the meantime. Query the accounts one by one.
+                    return null;
+                }
+                unreadCounts[i] = result.getInt(account.uuid);
+            }
+
+            return unreadCounts;
         }
-    }
 
-    /**
-     * Queries K-9 Mail's content provider to retrieve a list of accounts.
-     *
-     * <p>This should not be called from the main thread.</p>
-     *
-     * @param context
-     *         Used to retrieve the content resolver.
-     *
-     * @return A (possibly empty) list of {@link Account} instances, or {@code null} in case of an
-     *         error.
-     */
-    public static final List<Account> getAccounts(Context context) {
-        try {
-            ContentResolver cr = context.getContentResolver();
+        private static int[] createUnknownUnreadCounts(int count) {
+            int[] unreadCounts = new int[count];
+            Arrays.fill(unreadCounts, UNREAD_COUNT_UNKNOWN);
+            return unreadCounts;
+        }
 
+        private List<Account> queryAccounts() throws RemoteException {
             String[] projection = {
                     AccountColumns.NUMBER,
                     AccountColumns.NAME,
@@ -232,7 +670,7 @@ public class K9Helper {
                     AccountColumns.COLOR
             };
 
-            Cursor cursor = cr.query(ACCOUNTS_URI, projection, null, null, null, null);
+            Cursor cursor = query(ACCOUNTS_URI, projection);
             if (cursor == null) {
                 return null;
             }
@@ -268,48 +706,240 @@ public class K9Helper {
             }
 
             return accounts;
-        } catch (Exception e) {
-            Log.e("K9Helper", "Something went wrong while fetching the list of accounts", e);
-            return null;
         }
-    }
 
-    /**
-     * Query K-9 Mail's content provider to retrieve the number of unread messages in the supplied
-     * account.
-     *
-     * @param context
-     *         Used to retrieve the content resolver.
-     * @param account
-     *         The account to get the unread messages for. Use {@link #getAccounts(Context)} to
-     *         retrieve an {@link Account} instance. Must not be {@code null}.
-     *
-     * @return The number of unread messages in that account. Or {@code 0} if something went wrong.
-     */
-    public static final int getUnreadCount(Context context, Account account) {
-        try {
-            ContentResolver cr = context.getContentResolver();
-            Cursor cursor = cr.query(K9Helper.getAccountUnreadUri(account.number), null, null, null,
-                    null, null);
+        private Callable<Integer> createUnreadCountQuery(final Account account,
+                final UpdateMetrics.Histogram queryTimes) {
+            return new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    long start = System.nanoTime();
+                    int unreadCount = queryUnreadCount(account);
+                    if (queryTimes != null) {
+                        queryTimes.record(System.nanoTime() - start);
+                    }
+                    return unreadCount;
+                }
+            };
+        }
 
+        private int queryUnreadCount(Account account) throws RemoteException {
+            Cursor cursor = query(getAccountUnreadUri(account.number), null);
             if (cursor == null) {
-                return 0;
+                return UNREAD_COUNT_UNKNOWN;
             }
 
-            int accountUnread = 0;
             try {
                 if (cursor.moveToFirst()) {
-                    accountUnread = cursor.getInt(AccountUnreadColumns.UNREAD_INDEX);
+                    return cursor.getInt(AccountUnreadColumns.UNREAD_INDEX);
                 }
+                return 0;
             } finally {
                 cursor.close();
             }
+        }
 
-            return accountUnread;
-        } catch (Exception e) {
-            Log.e("K9Helper", "Something went wrong while fetching the unread count for " +
-                    account.name + " (" + account.uuid + ")", e);
-            return 0;
+        /**
+         * Runs a query on the executor and waits for the result. Without an executor the query
+         * runs on the calling thread.
+         *
+         * @throws TimeoutException
+         *         If the deadline passed.
+         * @throws CancellationException
+         *         If the session was canceled.
+         */
+        private <T> T runQuery(Callable<T> query, long deadline) throws Exception {
+            if (mExecutor == null) {
+                if (isCanceled()) {
+                    throw new CancellationException();
+                }
+                return query.call();
+            }
+
+            return await(startQuery(query), deadline);
+        }
+
+        private synchronized <T> Future<T> startQuery(Callable<T> query) {
+            Future<T> result;
+            if (mCanceled) {
+                result = createCanceledFuture(query);
+            } else {
+                try {
+                    result = mExecutor.submit(query);
+                } catch (RejectedExecutionException e) {
+                    // The executor was shut down, i.e. the service is being destroyed
+                    result = createCanceledFuture(query);
+                }
+            }
+
+            mRunningQueries.add(result);
+            return result;
+        }
+
+        private static <T> Future<T> createCanceledFuture(Callable<T> query) {
+            FutureTask<T> task = new FutureTask<T>(query);
+            task.cancel(false);
+            return task;
+        }
+
+        /**
+         * Waits for a query started by {@link #startQuery(Callable)}.
+         *
+         * @param deadline
+         *         See {@link #getDeadline(long)}.
+         */
+        private <T> T await(Future<T> result, long deadline) throws Exception {
+            try {
+                if (deadline == 0) {
+                    return result.get();
+                }
+
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                return result.get(remaining, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // Best effort. A query that already started keeps running until K-9 Mail answers.
+                result.cancel(false);
+                throw e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.cancel(false);
+                throw new CancellationException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw e;
+            } finally {
+                synchronized (this) {
+                    mRunningQueries.remove(result);
+                }
+            }
+        }
+
+        /**
+         * Converts a timeout to a deadline on the {@link System#nanoTime()} clock.
+         *
+         * @return The deadline, or {@code 0} if there is none.
+         */
+        private static long getDeadline(long timeoutMillis) {
+            if (timeoutMillis <= 0) {
+                return 0;
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            return (deadline == 0) ? 1 : deadline;
+        }
+
+        private synchronized boolean isCanceled() {
+            return mCanceled;
+        }
+
+        private synchronized void cancelQueries() {
+            mCanceled = true;
+            for (Future<?> result : mRunningQueries) {
+                result.cancel(false);
+            }
+            mRunningQueries.clear();
+        }
+
+        private Cursor query(Uri uri, String[] projection) throws RemoteException {
+            ContentProviderClient client = acquireClient();
+            if (client == null) {
+                return null;
+            }
+
+            try {
+                sProviderCallCount.incrementAndGet();
+                return client.query(uri, projection, null, null, null);
+            } catch (DeadObjectException e) {
+                // K-9 Mail's process died. Connect to the new instance and try once more.
+                client = reacquireClient(client);
+                if (client == null) {
+                    return null;
+                }
+
+                sProviderCallCount.incrementAndGet();
+                return client.query(uri, projection, null, null, null);
+            }
+        }
+
+        /**
+         * Calls a provider method.
+         *
+         * @return The result returned by K-9 Mail's content provider.
+         *
+         * @throws RemoteException
+         *         If no connection to K-9 Mail's content provider could be established.
+         */
+        private Bundle callProvider(String method) throws RemoteException {
+            ContentProviderClient client = acquireClient();
+            if (client == null) {
+                throw new RemoteException();
+            }
+
+            try {
+                sProviderCallCount.incrementAndGet();
+                return client.call(method, null, null);
+            } catch (DeadObjectException e) {
+                // K-9 Mail's process died. Connect to the new instance and try once more.
+                client = reacquireClient(client);
+                if (client == null) {
+                    throw e;
+                }
+
+                sProviderCallCount.incrementAndGet();
+                return client.call(method, null, null);
+            }
+        }
+
+        private synchronized ContentProviderClient acquireClient() {
+            if (mClosed) {
+                throw new IllegalStateException("Session is closed");
+            }
+
+            if (mClient == null) {
+                mClient = mContentResolver.acquireUnstableContentProviderClient(AUTHORITY);
+            }
+            return mClient;
+        }
+
+        private synchronized ContentProviderClient reacquireClient(
+                ContentProviderClient deadClient) {
+            // Another thread might have replaced the client already
+            if (mClient == deadClient) {
+                deadClient.release();
+                mClient = null;
+            }
+            return acquireClient();
+        }
+    }
+
+    /**
+     * Extracts the account number from an {@link BroadcastIntents#ACTION_EMAIL_RECEIVED} or
+     * {@link BroadcastIntents#ACTION_EMAIL_DELETED} broadcast.
+     *
+     * @param intent
+     *         The broadcast intent sent by K-9 Mail.
+     *
+     * @return The number of the account the broadcast refers to, or {@code -1} if the intent
+     *         doesn't contain that information.
+     */
+    public static final int getAccountNumber(Intent intent) {
+        Uri uri = intent.getData();
+        if (uri == null) {
+            return -1;
+        }
+
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 1) {
+            return -1;
+        }
+
+        try {
+            return Integer.parseInt(segments.get(0));
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
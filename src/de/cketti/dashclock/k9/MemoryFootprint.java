@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.List;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+
+/**
+ * Rough estimates of the heap memory retained by our caches, for
+ * {@link K9Extension#dump(java.io.FileDescriptor, java.io.PrintWriter, String[]) dumpsys}.
+ *
+ * <p>The numbers assume a 32-bit VM (4-byte references, 8-byte object headers rounded up to 16
+ * bytes including fields) and are only meant to spot caches that grow unexpectedly.</p>
+ */
+class MemoryFootprint {
+    private static final int OBJECT = 16;
+    private static final int ARRAY = 16;
+    private static final int REFERENCE = 4;
+
+    /**
+     * {@code String} object plus the header of its {@code char[]}.
+     */
+    private static final int STRING = 24 + ARRAY;
+
+    /**
+     * {@code ExtensionData} object with its fields.
+     */
+    private static final int EXTENSION_DATA = OBJECT + 9 * REFERENCE;
+
+    /**
+     * {@code Account} object with its fields.
+     */
+    private static final int ACCOUNT = OBJECT + 2 * 4 + 2 * REFERENCE;
+
+
+    private MemoryFootprint() {
+    }
+
+    static long of(String value) {
+        return (value == null) ? 0 : STRING + 2L * value.length();
+    }
+
+    static long of(int[] values) {
+        return (values == null) ? 0 : ARRAY + 4L * values.length;
+    }
+
+    static long ofCharBuffer(int capacity) {
+        return ARRAY + 2L * capacity;
+    }
+
+    /**
+     * Returns the size of the list itself, not including the accounts.
+     */
+    static long ofList(List<?> list) {
+        return (list == null) ? 0 : 2 * OBJECT + ARRAY + (long) REFERENCE * list.size();
+    }
+
+    /**
+     * Returns the size of the list including the accounts.
+     */
+    static long ofAccounts(List<Account> accounts) {
+        if (accounts == null) {
+            return 0;
+        }
+
+        long size = ofList(accounts);
+        for (Account account : accounts) {
+            size += ACCOUNT + of(account.name) + of(account.uuid);
+        }
+        return size;
+    }
+
+    static long of(ExtensionData data) {
+        if (data == null) {
+            return 0;
+        }
+
+        return EXTENSION_DATA + of(data.status()) + of(data.expandedTitle()) +
+                of(data.expandedBody()) + of(data.contentDescription());
+    }
+}
@@ -36,8 +36,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
-import de.cketti.dashclock.k9.K9Helper.Account;
-
 
 /**
  * A {@link PreferenceActivity} that presents a set of application settings. On handset devices,
@@ -255,23 +253,25 @@ public class SettingsActivity extends PreferenceActivity {
 
         @Override
         protected List<Account> doInBackground(Void... params) {
-            if (!K9Helper.isK9Installed(mContext)) {
+            K9Environment environment = K9Environment.get(mContext);
+
+            if (!environment.installed) {
                 publishProgress(mContext.getString(R.string.error_k9_not_installed));
                 return null;
             }
 
-            if (!K9Helper.isK9Enabled(mContext)) {
+            if (!environment.enabled) {
                 publishProgress(mContext.getString(R.string.error_k9_not_enabled));
                 return null;
             }
 
-            if (!K9Helper.hasK9ReadPermission(mContext)) {
+            if (!environment.hasPermission) {
                 publishProgress(mContext.getString(R.string.error_k9_no_permission,
                         mContext.getString(R.string.app_name)));
                 return null;
             }
 
-            return K9Helper.getAccounts(mContext);
+            return AccountRepository.getAccounts(mContext);
         }
 
         @Override
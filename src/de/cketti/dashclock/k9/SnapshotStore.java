@@ -0,0 +1,381 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+import com.google.android.apps.dashclock.api.ExtensionDataCodec;
+
+
+/**
+ * Keeps a copy of the last published data and the unread counts it was built from in
+ * app-private storage.
+ *
+ * <p>When the process was killed, DashClock would show nothing until K-9 Mail's content provider
+ * answered our first query. Instead we publish the saved snapshot right away and revalidate it
+ * in the background.</p>
+ *
+ * <p>The file starts with {@link #MAGIC} and {@link #FILE_VERSION}, followed by the published data
+ * (see {@link ExtensionDataCodec}), the number of accounts, and a length-prefixed record for each
+ * account. It is read through a memory-mapped buffer.</p>
+ *
+ * <p>Writes are atomic (see {@link AtomicFile}) and happen on a background thread. They are
+ * throttled to at most one every {@link #MIN_WRITE_INTERVAL} milliseconds; only the most recent
+ * snapshot is written.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class SnapshotStore {
+    private static final String TAG = "SnapshotStore";
+
+    static final String FILE_NAME = "snapshot";
+
+    private static final int MAGIC = 0x4b39536e; // "K9Sn"
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Size of the fixed part of an account record: number, color, unread count.
+     */
+    private static final int ACCOUNT_FIXED_SIZE = 4 + 4 + 4;
+
+    /**
+     * Minimum time in milliseconds between two writes.
+     */
+    private static final long MIN_WRITE_INTERVAL = 30 * 1000;
+
+    /**
+     * Time in seconds after which the idle write thread is terminated.
+     */
+    private static final long WRITE_THREAD_KEEP_ALIVE = 10;
+
+    /**
+     * The contents of the store.
+     */
+    static class Snapshot {
+        /**
+         * The data that was published.
+         */
+        public final ExtensionData data;
+
+        /**
+         * The unread counts {@link #data} was built from.
+         */
+        public final UnreadCountTable.Snapshot unreadCounts;
+
+        Snapshot(ExtensionData data, UnreadCountTable.Snapshot unreadCounts) {
+            this.data = data;
+            this.unreadCounts = unreadCounts;
+        }
+    }
+
+
+    private final AtomicFile mFile;
+    private final ScheduledThreadPoolExecutor mWriteExecutor;
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writePendingSnapshot();
+        }
+    };
+
+    private Snapshot mPendingSnapshot = null;
+    private Snapshot mWrittenSnapshot = null;
+    private ScheduledFuture<?> mScheduledWrite = null;
+    private long mLastWriteTime = 0;
+
+
+    SnapshotStore(Context context) {
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+
+        mWriteExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "K9Extension:snapshot");
+            }
+        });
+        mWriteExecutor.setKeepAliveTime(WRITE_THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+        mWriteExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Reads the saved snapshot.
+     *
+     * <p>This performs disk I/O and should not be called from the main thread.</p>
+     *
+     * @return The saved snapshot, or {@code null} if there is none or it couldn't be read.
+     */
+    public Snapshot load() {
+        FileInputStream in = null;
+        try {
+            in = mFile.openRead();
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            Snapshot snapshot = decode(buffer);
+            synchronized (this) {
+                if (mWrittenSnapshot == null) {
+                    mWrittenSnapshot = snapshot;
+                }
+            }
+
+            return snapshot;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            Log.w(TAG, "Couldn't read saved snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) { /* ignore */ }
+            }
+        }
+    }
+
+    /**
+     * Schedules a snapshot to be written.
+     *
+     * <p>Does nothing if the snapshot equals the one already saved. Otherwise it is written once
+     * {@link #MIN_WRITE_INTERVAL} milliseconds have passed since the last write. If this is
+     * called again in the meantime, only the newer snapshot is written.</p>
+     *
+     * @param data
+     *         The published data.
+     * @param unreadCounts
+     *         The unread counts {@code data} was built from. The contents must not be modified
+     *         afterwards.
+     */
+    public synchronized void save(ExtensionData data, UnreadCountTable.Snapshot unreadCounts) {
+        Snapshot snapshot = new Snapshot(data, unreadCounts);
+        if (isEqual(snapshot, (mPendingSnapshot != null) ? mPendingSnapshot : mWrittenSnapshot)) {
+            return;
+        }
+
+        mPendingSnapshot = snapshot;
+        if (mScheduledWrite == null && !mWriteExecutor.isShutdown()) {
+            long delay = Math.max(0,
+                    mLastWriteTime + MIN_WRITE_INTERVAL - SystemClock.elapsedRealtime());
+            mScheduledWrite = mWriteExecutor.schedule(mWriteRunnable, delay,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Forgets the copy of the last written snapshot. It is only kept to skip writing an identical
+     * snapshot, so the next call to {@link #save(ExtensionData, UnreadCountTable.Snapshot)}
+     * writes the file again. A pending snapshot is kept.
+     */
+    public synchronized void trimMemory() {
+        mWrittenSnapshot = null;
+    }
+
+    /**
+     * Returns the estimated number of bytes retained by the pending snapshot and the copy of the
+     * last written one, not including the accounts (they are shared with
+     * {@link AccountRepository}).
+     */
+    public synchronized long getMemoryFootprint() {
+        return getMemoryFootprint(mPendingSnapshot) + getMemoryFootprint(mWrittenSnapshot);
+    }
+
+    /**
+     * Writes a pending snapshot right away and stops the write thread. The store can't be used
+     * for writing afterwards.
+     */
+    public synchronized void close() {
+        if (mScheduledWrite != null) {
+            mScheduledWrite.cancel(false);
+            mScheduledWrite = null;
+        }
+
+        if (mPendingSnapshot != null && !mWriteExecutor.isShutdown()) {
+            mScheduledWrite = mWriteExecutor.schedule(mWriteRunnable, 0, TimeUnit.MILLISECONDS);
+        }
+        mWriteExecutor.shutdown();
+    }
+
+    private void writePendingSnapshot() {
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = mPendingSnapshot;
+            mPendingSnapshot = null;
+            mScheduledWrite = null;
+            mLastWriteTime = SystemClock.elapsedRealtime();
+        }
+
+        if (snapshot == null) {
+            return;
+        }
+
+        FileOutputStream out = null;
+        try {
+            byte[] bytes = encode(snapshot);
+
+            out = mFile.startWrite();
+            out.write(bytes);
+            mFile.finishWrite(out);
+
+            synchronized (this) {
+                mWrittenSnapshot = snapshot;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Couldn't save snapshot", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    private static long getMemoryFootprint(Snapshot snapshot) {
+        if (snapshot == null) {
+            return 0;
+        }
+
+        return MemoryFootprint.of(snapshot.data) +
+                MemoryFootprint.ofList(snapshot.unreadCounts.accounts) +
+                MemoryFootprint.of(snapshot.unreadCounts.unreadCounts);
+    }
+
+    private static byte[] encode(Snapshot snapshot) {
+        List<Account> accounts = snapshot.unreadCounts.accounts;
+        int[] unreadCounts = snapshot.unreadCounts.unreadCounts;
+        int accountCount = accounts.size();
+
+        byte[] data = ExtensionDataCodec.encode(snapshot.data);
+        byte[][] uuids = new byte[accountCount][];
+        byte[][] names = new byte[accountCount][];
+
+        int size = 4 + 4 + data.length + 4;
+        for (int i = 0; i < accountCount; i++) {
+            Account account = accounts.get(i);
+            uuids[i] = ExtensionDataCodec.encodeString(account.uuid);
+            names[i] = ExtensionDataCodec.encodeString(account.name);
+            size += 4 + getAccountRecordSize(uuids[i], names[i]);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC);
+        out.putInt(FILE_VERSION);
+        out.put(data);
+        out.putInt(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            Account account = accounts.get(i);
+            out.putInt(getAccountRecordSize(uuids[i], names[i]));
+            out.putInt(account.number);
+            out.putInt(account.color);
+            out.putInt(unreadCounts[i]);
+            ExtensionDataCodec.putString(out, uuids[i]);
+            ExtensionDataCodec.putString(out, names[i]);
+        }
+
+        return out.array();
+    }
+
+    private static Snapshot decode(ByteBuffer in) {
+        if (in.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a snapshot file");
+        }
+        int version = in.getInt();
+        if (version != FILE_VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot version: " + version);
+        }
+
+        ExtensionData data = ExtensionDataCodec.decode(in);
+
+        int accountCount = in.getInt();
+        if (accountCount < 0 || accountCount > in.remaining() / (4 + ACCOUNT_FIXED_SIZE)) {
+            throw new IllegalArgumentException("Invalid account count: " + accountCount);
+        }
+
+        List<Account> accounts = new ArrayList<Account>(accountCount);
+        int[] unreadCounts = new int[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            int recordSize = in.getInt();
+            int end = in.position() + recordSize;
+            if (recordSize < ACCOUNT_FIXED_SIZE || end > in.limit()) {
+                throw new IllegalArgumentException("Invalid account record size: " + recordSize);
+            }
+
+            int number = in.getInt();
+            int color = in.getInt();
+            unreadCounts[i] = in.getInt();
+            String uuid = ExtensionDataCodec.getString(in);
+            String name = ExtensionDataCodec.getString(in);
+            if (uuid == null || name == null) {
+                throw new IllegalArgumentException("Account record without UUID or name");
+            }
+            accounts.add(new Account(number, name, uuid, color));
+
+            in.position(end);
+        }
+
+        return new Snapshot(data, new UnreadCountTable.Snapshot(accounts, unreadCounts));
+    }
+
+    private static int getAccountRecordSize(byte[] uuid, byte[] name) {
+        return ACCOUNT_FIXED_SIZE + ExtensionDataCodec.getEncodedSize(uuid) +
+                ExtensionDataCodec.getEncodedSize(name);
+    }
+
+    private static boolean isEqual(Snapshot x, Snapshot y) {
+        if (y == null) {
+            return false;
+        }
+
+        if (!ExtensionData.equals(x.data, y.data) ||
+                !Arrays.equals(x.unreadCounts.unreadCounts, y.unreadCounts.unreadCounts)) {
+            return false;
+        }
+
+        List<Account> xAccounts = x.unreadCounts.accounts;
+        List<Account> yAccounts = y.unreadCounts.accounts;
+        if (xAccounts == yAccounts) {
+            return true;
+        }
+        if (xAccounts.size() != yAccounts.size()) {
+            return false;
+        }
+        for (int i = 0, len = xAccounts.size(); i < len; i++) {
+            Account xAccount = xAccounts.get(i);
+            Account yAccount = yAccounts.get(i);
+            if (xAccount.number != yAccount.number || !xAccount.uuid.equals(yAccount.uuid) ||
+                    !xAccount.name.equals(yAccount.name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Turns a list of accounts and their unread counts into the data displayed by DashClock.
+ *
+ * <p><strong>Note:</strong> This class must not depend on the Android framework, so it can be
+ * used (and measured) on a plain JVM. Everything that needs a {@code Context} is done by the
+ * caller, e.g. via the {@link LineFormatter} passed to
+ * {@link #aggregate(List, int[], boolean[], LineFormatter)}. The JMH benchmarks in
+ * {@code benchmarks/} run it without the rest of the app.</p>
+ *
+ * <p>Instances are not thread-safe. They reuse an internal buffer across calls.</p>
+ */
+class UnreadAggregator {
+    /**
+     * Formats the line of an account in the expanded body.
+     */
+    interface LineFormatter {
+        /**
+         * Appends the line for an account to {@code body}.
+         *
+         * @param body
+         *         The buffer to append to.
+         * @param accountName
+         *         The name of the account.
+         * @param unreadCount
+         *         The number of unread messages in the account. Always greater than {@code 0}.
+         * @param stale
+         *         {@code true} if {@code unreadCount} is the last known value because K-9 Mail
+         *         didn't answer in time.
+         */
+        void appendLine(StringBuilder body, String accountName, int unreadCount, boolean stale);
+    }
+
+    /**
+     * The data to display in DashClock.
+     */
+    static class Summary {
+        /**
+         * Total number of unread messages in all accounts.
+         */
+        public final int unreadCount;
+
+        /**
+         * Number of accounts with unread messages, i.e. the number of lines in {@link #body}.
+         */
+        public final int accountsWithUnread;
+
+        /**
+         * One line per account with unread messages.
+         */
+        public final String body;
+
+        Summary(int unreadCount, int accountsWithUnread, String body) {
+            this.unreadCount = unreadCount;
+            this.accountsWithUnread = accountsWithUnread;
+            this.body = body;
+        }
+
+        /**
+         * Returns whether or not the extension should be visible.
+         */
+        public boolean isVisible() {
+            return unreadCount > 0;
+        }
+    }
+
+
+    private final StringBuilder mBody = new StringBuilder();
+
+    /**
+     * Returns the accounts the user enabled in the settings.
+     *
+     * @param accounts
+     *         All accounts.
+     * @param enabledAccountUuids
+     *         The UUIDs of the enabled accounts, or {@code null} if the user didn't change the
+     *         default (all accounts are enabled).
+     *
+     * @return A new list containing the enabled accounts in the order of {@code accounts}.
+     */
+    public static List<Account> filter(List<Account> accounts, Set<String> enabledAccountUuids) {
+        List<Account> displayedAccounts = new ArrayList<Account>(accounts.size());
+        for (Account account : accounts) {
+            if (enabledAccountUuids == null || enabledAccountUuids.contains(account.uuid)) {
+                displayedAccounts.add(account);
+            }
+        }
+
+        return displayedAccounts;
+    }
+
+    /**
+     * Sums up the unread counts and builds the expanded body.
+     *
+     * @param accounts
+     *         The displayed accounts.
+     * @param unreadCounts
+     *         The unread count of each account in {@code accounts}.
+     * @param stale
+     *         Whether the unread count of each account in {@code accounts} is a last known
+     *         value. May be {@code null} if all unread counts are current.
+     * @param formatter
+     *         Used to format the line of each account with unread messages.
+     */
+    public Summary aggregate(List<Account> accounts, int[] unreadCounts, boolean[] stale,
+            LineFormatter formatter) {
+        StringBuilder body = mBody;
+        body.setLength(0);
+
+        int unreadCount = 0;
+        int accountsWithUnread = 0;
+        for (int i = 0, len = accounts.size(); i < len; i++) {
+            int accountUnread = unreadCounts[i];
+            if (accountUnread <= 0) {
+                continue;
+            }
+
+            unreadCount += accountUnread;
+
+            if (accountsWithUnread++ > 0) {
+                body.append('\n');
+            }
+            formatter.appendLine(body, accounts.get(i).name, accountUnread,
+                    stale != null && stale[i]);
+        }
+
+        return new Summary(unreadCount, accountsWithUnread, body.toString());
+    }
+
+    /**
+     * Frees the internal buffer. It grows again on the next call to
+     * {@link #aggregate(List, int[], boolean[], LineFormatter)}.
+     */
+    public void releaseBuffer() {
+        mBody.setLength(0);
+        mBody.trimToSize();
+    }
+
+    /**
+     * Returns the capacity of the internal buffer in characters.
+     */
+    public int getBufferCapacity() {
+        return mBody.capacity();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.List;
+
+
+/**
+ * In-memory table of the unread counts of the displayed accounts.
+ *
+ * <p>The table is filled with the result of a full provider query and then kept up to date by
+ * applying the changes announced by K-9 Mail's broadcasts. Those changes are only an
+ * approximation (e.g. we don't know whether a received message is unread). So whenever the table
+ * looks inconsistent, or too many changes were applied since the last full query, the table
+ * invalidates itself and the next update will have to query K-9 Mail's content provider again.
+ * </p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class UnreadCountTable {
+    /**
+     * Maximum number of changes applied between two full queries.
+     *
+     * <p>A received message might already be read or be stored in a folder that doesn't count
+     * towards the unread count. Such errors can't be detected, so this bounds how far the
+     * displayed count can be off.</p>
+     */
+    private static final int MAX_DELTAS = 5;
+
+    /**
+     * Immutable copy of the table's contents.
+     */
+    static class Snapshot {
+        /**
+         * The displayed accounts.
+         */
+        public final List<Account> accounts;
+
+        /**
+         * The unread count of each account in {@link #accounts}.
+         */
+        public final int[] unreadCounts;
+
+        /**
+         * Whether the unread count of each account in {@link #accounts} is a last known value
+         * because K-9 Mail didn't answer in time or the query was abandoned. {@code null} if all
+         * unread counts are current.
+         */
+        public final boolean[] stale;
+
+        Snapshot(List<Account> accounts, int[] unreadCounts) {
+            this(accounts, unreadCounts, null);
+        }
+
+        Snapshot(List<Account> accounts, int[] unreadCounts, boolean[] stale) {
+            this.accounts = accounts;
+            this.unreadCounts = unreadCounts;
+            this.stale = stale;
+        }
+
+        /**
+         * Returns {@code true} if none of the unread counts is current, i.e. the snapshot
+         * contains nothing we didn't know before.
+         */
+        public boolean isStale() {
+            if (stale == null) {
+                return false;
+            }
+
+            for (boolean accountStale : stale) {
+                if (!accountStale) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+
+    private List<Account> mAccounts;
+    private int[] mUnreadCounts;
+    private boolean mValid = false;
+    private int mDeltaCount = 0;
+    private long mModificationCount = 0;
+
+    /**
+     * Returns a value that changes whenever the table is modified.
+     *
+     * <p>Call this before starting a full query and pass the result to
+     * {@link #update(List, int[], long)}.</p>
+     */
+    public synchronized long getModificationCount() {
+        return mModificationCount;
+    }
+
+    /**
+     * Replaces the contents of the table with the result of a full query.
+     *
+     * @param accounts
+     *         The displayed accounts. The list must not be modified afterwards.
+     * @param unreadCounts
+     *         The unread count of each account in {@code accounts}. The array must not be
+     *         modified afterwards.
+     * @param modificationCount
+     *         The result of {@link #getModificationCount()} before the query was started. If
+     *         changes were applied while the query was running, we can't tell whether they are
+     *         included in the result. In that case the table is not marked as valid.
+     */
+    public synchronized void update(List<Account> accounts, int[] unreadCounts,
+            long modificationCount) {
+        mAccounts = accounts;
+        mUnreadCounts = unreadCounts;
+        mDeltaCount = 0;
+        mValid = (modificationCount == mModificationCount);
+    }
+
+    /**
+     * Fills the table with previously saved unread counts, e.g. after the process was restarted.
+     *
+     * <p>The table is not marked as valid. The values are only used as last known unread counts
+     * until the first full query finishes. Does nothing if the table was filled before.</p>
+     *
+     * @param accounts
+     *         The displayed accounts. The list must not be modified afterwards.
+     * @param unreadCounts
+     *         The unread count of each account in {@code accounts}. The array must not be
+     *         modified afterwards.
+     */
+    public synchronized void restore(List<Account> accounts, int[] unreadCounts) {
+        if (mAccounts != null) {
+            return;
+        }
+
+        mAccounts = accounts;
+        mUnreadCounts = unreadCounts;
+    }
+
+    /**
+     * Changes the unread count of an account.
+     *
+     * @param accountNumber
+     *         The number of the account whose unread count changed.
+     * @param delta
+     *         The value to add to the unread count.
+     *
+     * @return {@code true} if the change was applied or the account isn't displayed.
+     *         {@code false} if the table is no longer valid.
+     */
+    public synchronized boolean applyDelta(int accountNumber, int delta) {
+        mModificationCount++;
+
+        if (!mValid) {
+            return false;
+        }
+
+        int index = indexOf(accountNumber);
+        if (index == -1) {
+            // Not one of the displayed accounts
+            return true;
+        }
+
+        int unreadCount = mUnreadCounts[index] + delta;
+        if (unreadCount < 0 || ++mDeltaCount > MAX_DELTAS) {
+            mValid = false;
+            return false;
+        }
+
+        mUnreadCounts[index] = unreadCount;
+        return true;
+    }
+
+    /**
+     * Marks the table as invalid, so the next update performs a full query.
+     */
+    public synchronized void invalidate() {
+        mModificationCount++;
+        mValid = false;
+    }
+
+    /**
+     * Forgets the contents of the table, including the last known unread counts. The next update
+     * performs a full query.
+     */
+    public synchronized void clear() {
+        mModificationCount++;
+        mValid = false;
+        mAccounts = null;
+        mUnreadCounts = null;
+        mDeltaCount = 0;
+    }
+
+    /**
+     * Returns the estimated number of bytes retained by the table, not including the accounts
+     * (they are shared with {@link AccountRepository}).
+     */
+    public synchronized long getMemoryFootprint() {
+        return MemoryFootprint.ofList(mAccounts) + MemoryFootprint.of(mUnreadCounts);
+    }
+
+    /**
+     * Returns a copy of the table's contents, or {@code null} if the table is not valid.
+     */
+    public synchronized Snapshot getSnapshot() {
+        if (!mValid) {
+            return null;
+        }
+
+        return new Snapshot(mAccounts, mUnreadCounts.clone());
+    }
+
+    /**
+     * Returns the unread count of an account from the most recent full query, including changes
+     * applied since then, even if the table is no longer valid.
+     *
+     * @param accountUuid
+     *         The UUID of the account.
+     *
+     * @return The last known unread count, or {@link K9Helper#UNREAD_COUNT_UNKNOWN} if the table
+     *         doesn't contain the account.
+     */
+    public synchronized int getLastKnownUnreadCount(String accountUuid) {
+        if (mAccounts == null) {
+            return K9Helper.UNREAD_COUNT_UNKNOWN;
+        }
+
+        for (int i = 0, len = mAccounts.size(); i < len; i++) {
+            if (mAccounts.get(i).uuid.equals(accountUuid)) {
+                return mUnreadCounts[i];
+            }
+        }
+        return K9Helper.UNREAD_COUNT_UNKNOWN;
+    }
+
+    /**
+     * Returns the contents of the table from the most recent full query, including changes
+     * applied since then, even if the table is no longer valid.
+     *
+     * @return A copy of the table's contents, or {@code null} if the table was never filled.
+     */
+    public synchronized Snapshot getLastKnownSnapshot() {
+        if (mAccounts == null) {
+            return null;
+        }
+
+        return new Snapshot(mAccounts, mUnreadCounts.clone());
+    }
+
+    private int indexOf(int accountNumber) {
+        for (int i = 0, len = mAccounts.size(); i < len; i++) {
+            if (mAccounts.get(i).number == accountNumber) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+
+/**
+ * Renders the strings displayed by DashClock without going through {@link String#format} on
+ * every update.
+ *
+ * <p>The account line formats ({@code R.string.account_name_format} and
+ * {@code R.string.account_name_format_stale}) are parsed once into literal segments and argument
+ * references. The title ({@code R.plurals.unread_title}) is cached per
+ * unread count. Everything is recreated when the locale changes or {@link #invalidate()} is
+ * called, e.g. from {@code onConfigurationChanged()}.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class UnreadRenderer implements UnreadAggregator.LineFormatter {
+    /**
+     * Titles are only cached for unread counts up to this value.
+     */
+    private static final int MAX_CACHED_TITLE_COUNT = 100;
+
+    private final Context mContext;
+    private Locale mLocale = null;
+    private LineFormat mLineFormat = null;
+    private LineFormat mStaleLineFormat = null;
+    private String[] mTitles = null;
+
+
+    UnreadRenderer(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Drops the precompiled format and cached titles. They are recreated on the next use.
+     */
+    public synchronized void invalidate() {
+        mLocale = null;
+        mLineFormat = null;
+        mStaleLineFormat = null;
+        mTitles = null;
+    }
+
+    @Override
+    public synchronized void appendLine(StringBuilder body, String accountName, int unreadCount,
+            boolean stale) {
+        ensureUpToDate();
+        LineFormat lineFormat = (stale) ? mStaleLineFormat : mLineFormat;
+        lineFormat.appendTo(body, accountName, unreadCount);
+    }
+
+    /**
+     * Returns the expanded title for the given total number of unread messages.
+     */
+    public synchronized String getTitle(int unreadCount) {
+        ensureUpToDate();
+
+        if (unreadCount < 0 || unreadCount > MAX_CACHED_TITLE_COUNT) {
+            return getResources().getQuantityString(R.plurals.unread_title, unreadCount,
+                    unreadCount);
+        }
+
+        String title = mTitles[unreadCount];
+        if (title == null) {
+            title = getResources().getQuantityString(R.plurals.unread_title, unreadCount,
+                    unreadCount);
+            mTitles[unreadCount] = title;
+        }
+        return title;
+    }
+
+    /**
+     * Returns the estimated number of bytes retained by the precompiled format and cached titles.
+     */
+    public synchronized long getMemoryFootprint() {
+        long size = 0;
+        if (mLineFormat != null) {
+            size += mLineFormat.getMemoryFootprint() + mStaleLineFormat.getMemoryFootprint();
+        }
+        if (mTitles != null) {
+            size += 16 + 4L * mTitles.length;
+            for (String title : mTitles) {
+                size += MemoryFootprint.of(title);
+            }
+        }
+        return size;
+    }
+
+    private void ensureUpToDate() {
+        Locale locale = getResources().getConfiguration().locale;
+        if (mLineFormat != null && locale.equals(mLocale)) {
+            return;
+        }
+
+        mLocale = locale;
+        mLineFormat = LineFormat.compile(getResources().getString(R.string.account_name_format),
+                locale);
+        mStaleLineFormat = LineFormat.compile(
+                getResources().getString(R.string.account_name_format_stale), locale);
+        mTitles = new String[MAX_CACHED_TITLE_COUNT + 1];
+    }
+
+    private Resources getResources() {
+        return mContext.getResources();
+    }
+
+
+    /**
+     * A format string with the arguments {@code (String accountName, int unreadCount)}, split
+     * into literal segments and argument references.
+     *
+     * <p>Only {@code %s}, {@code %d}, their positional variants ({@code %1$s}, {@code %2$d}) and
+     * {@code %%} are precompiled. Anything else, or a locale that doesn't use ASCII digits, falls
+     * back to {@link String#format(Locale, String, Object...)}.</p>
+     */
+    static class LineFormat {
+        private static final int ARG_NONE = -1;
+
+        private final Locale mLocale;
+        private final String mPattern;
+        private final String[] mLiterals;
+        private final int[] mArguments;
+
+
+        private LineFormat(Locale locale, String pattern, String[] literals, int[] arguments) {
+            mLocale = locale;
+            mPattern = pattern;
+            mLiterals = literals;
+            mArguments = arguments;
+        }
+
+        static LineFormat compile(String pattern, Locale locale) {
+            if (DecimalFormatSymbols.getInstance(locale).getZeroDigit() != '0') {
+                return new LineFormat(locale, pattern, null, null);
+            }
+
+            List<String> literals = new ArrayList<String>();
+            List<Integer> arguments = new ArrayList<Integer>();
+            StringBuilder literal = new StringBuilder();
+            int nextArgument = 0;
+            int i = 0;
+            int len = pattern.length();
+            while (i < len) {
+                char c = pattern.charAt(i++);
+                if (c != '%') {
+                    literal.append(c);
+                    continue;
+                }
+
+                if (i < len && pattern.charAt(i) == '%') {
+                    literal.append('%');
+                    i++;
+                    continue;
+                }
+
+                int argument;
+                if (i + 2 < len && pattern.charAt(i + 1) == '$') {
+                    argument = pattern.charAt(i) - '1';
+                    i += 2;
+                } else {
+                    argument = nextArgument++;
+                }
+
+                char conversion = (i < len) ? pattern.charAt(i++) : 0;
+                if (argument == 0 && conversion == 's' || argument == 1 && conversion == 'd') {
+                    literals.add(literal.toString());
+                    arguments.add(argument);
+                    literal.setLength(0);
+                } else {
+                    // Not something we know how to precompile
+                    return new LineFormat(locale, pattern, null, null);
+                }
+            }
+            literals.add(literal.toString());
+            arguments.add(ARG_NONE);
+
+            int count = literals.size();
+            int[] argumentArray = new int[count];
+            for (int j = 0; j < count; j++) {
+                argumentArray[j] = arguments.get(j);
+            }
+
+            return new LineFormat(locale, pattern, literals.toArray(new String[count]),
+                    argumentArray);
+        }
+
+        void appendTo(StringBuilder out, String accountName, int unreadCount) {
+            if (mLiterals == null) {
+                out.append(String.format(mLocale, mPattern, accountName, unreadCount));
+                return;
+            }
+
+            for (int i = 0, len = mLiterals.length; i < len; i++) {
+                out.append(mLiterals[i]);
+                switch (mArguments[i]) {
+                    case 0: {
+                        out.append(accountName);
+                        break;
+                    }
+                    case 1: {
+                        out.append(unreadCount);
+                        break;
+                    }
+                }
+            }
+        }
+
+        long getMemoryFootprint() {
+            long size = MemoryFootprint.of(mPattern);
+            if (mLiterals != null) {
+                for (String literal : mLiterals) {
+                    size += MemoryFootprint.of(literal);
+                }
+                size += MemoryFootprint.of(mArguments);
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import android.content.Intent;
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Measures the ways {@link ExtensionData} is copied between processes and stored.
+ *
+ * <p>Results are written to logcat (tag {@value Microbenchmark#TAG}).</p>
+ */
+@LargeTest
+public class ExtensionDataBenchmark extends TestCase {
+    private static final int RUNS = 10000;
+
+
+    /**
+     * Compares a parcel round trip (one publish) with and without parsing the click intent.
+     *
+     * <p>Before the click intent was parsed lazily, every round trip paid for
+     * {@link Intent#toUri(int)} when writing and {@link Intent#parseUri(String, int)} when
+     * reading. Now the extension's side of a publish does neither, and the host parses the intent
+     * only when it calls {@link ExtensionData#clickIntent()}.</p>
+     */
+    public void testParcelClickIntent() {
+        final ExtensionData data = createData();
+
+        Microbenchmark.Result lazy = Microbenchmark.measure("parcel round trip", RUNS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        parcelAndUnparcel(data);
+                    }
+                });
+
+        Microbenchmark.Result parsed = Microbenchmark.measure(
+                "parcel round trip + clickIntent()", RUNS, new Runnable() {
+                    @Override
+                    public void run() {
+                        parcelAndUnparcel(data).clickIntent();
+                    }
+                });
+
+        final Intent clickIntent = data.clickIntent();
+        Microbenchmark.Result toUri = Microbenchmark.measure("clickIntent toUri(0)", RUNS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        clickIntent.toUri(0);
+                    }
+                });
+
+        Log.i(Microbenchmark.TAG, String.format(Locale.US, "Lazy click intent saves %d ns and " +
+                "%.1f allocations (%.0f bytes) per publish",
+                parsed.nanosPerRun - lazy.nanosPerRun + toUri.nanosPerRun,
+                parsed.allocationsPerRun - lazy.allocationsPerRun + toUri.allocationsPerRun,
+                parsed.bytesPerRun - lazy.bytesPerRun + toUri.bytesPerRun));
+    }
+
+    /**
+     * Compares writing and reading parcels of version 1 and 2. Version 2 writes two more fields
+     * and back-patches its size; readers of version 2 jump behind the data afterwards.
+     */
+    public void testParcelVersions() {
+        final ExtensionData data = createData();
+        ExtensionData dataWithVersion2Fields = createData()
+                .contentDescription("12 unread messages in 2 accounts");
+
+        final Parcel parcel = Parcel.obtain();
+        try {
+            Microbenchmark.measure("parcel write, version 1", RUNS, new Runnable() {
+                @Override
+                public void run() {
+                    parcel.setDataPosition(0);
+                    ExtensionDataTest.writeVersion1(parcel, data);
+                }
+            });
+
+            Microbenchmark.measure("parcel write, version 2", RUNS, new Runnable() {
+                @Override
+                public void run() {
+                    parcel.setDataPosition(0);
+                    data.writeToParcel(parcel, 0);
+                }
+            });
+
+            parcel.setDataPosition(0);
+            ExtensionDataTest.writeVersion1(parcel, data);
+            measureRead("parcel read, version 1", parcel);
+
+            parcel.setDataPosition(0);
+            data.writeToParcel(parcel, 0);
+            measureRead("parcel read, version 2", parcel);
+
+            parcel.setDataPosition(0);
+            dataWithVersion2Fields.writeToParcel(parcel, 0);
+            measureRead("parcel read, version 2 with content description", parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Compares storing data with {@link ExtensionDataCodec} with storing it as JSON (see
+     * {@link ExtensionData#serialize()}), the format snapshots used before.
+     */
+    public void testCodecAgainstJson() {
+        final ExtensionData data = createData()
+                .contentDescription("12 unread messages in 2 accounts");
+
+        final byte[] record = ExtensionDataCodec.encode(data);
+        final byte[] json = ExtensionDataCodecTest.encodeJson(data);
+        Log.i(Microbenchmark.TAG, "Encoded size: " + record.length + " bytes (codec), " +
+                json.length + " bytes (JSON)");
+
+        Microbenchmark.Result codecEncode = Microbenchmark.measure("codec encode", RUNS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        ExtensionDataCodec.encode(data);
+                    }
+                });
+        Microbenchmark.Result jsonEncode = Microbenchmark.measure("JSON encode", RUNS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        ExtensionDataCodecTest.encodeJson(data);
+                    }
+                });
+        Microbenchmark.Result codecDecode = Microbenchmark.measure("codec decode", RUNS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        ExtensionDataCodec.decode(ByteBuffer.wrap(record));
+                    }
+                });
+        Microbenchmark.Result jsonDecode = Microbenchmark.measure("JSON decode", RUNS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        ExtensionDataCodecTest.decodeJson(json);
+                    }
+                });
+
+        Log.i(Microbenchmark.TAG, String.format(Locale.US, "Round trip: %d ns (codec), " +
+                "%d ns (JSON)", codecEncode.nanosPerRun + codecDecode.nanosPerRun,
+                jsonEncode.nanosPerRun + jsonDecode.nanosPerRun));
+    }
+
+    private static void measureRead(String name, final Parcel parcel) {
+        Microbenchmark.measure(name, RUNS, new Runnable() {
+            @Override
+            public void run() {
+                parcel.setDataPosition(0);
+                ExtensionData.CREATOR.createFromParcel(parcel);
+            }
+        });
+    }
+
+    /**
+     * Returns data like the extension publishes.
+     */
+    private static ExtensionData createData() {
+        Intent clickIntent = new Intent(Intent.ACTION_MAIN)
+                .setClassName("com.fsck.k9", "com.fsck.k9.activity.Accounts")
+                .addCategory(Intent.CATEGORY_LAUNCHER)
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+        return new ExtensionData()
+                .visible(true)
+                .icon(42)
+                .status("12")
+                .expandedTitle("12 unread messages")
+                .expandedBody("Work (10)\nPrivate (2)")
+                .clickIntent(clickIntent);
+    }
+
+    private static ExtensionData parcelAndUnparcel(ExtensionData data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            data.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return ExtensionData.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
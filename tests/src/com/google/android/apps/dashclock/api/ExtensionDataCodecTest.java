@@ -0,0 +1,280 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Intent;
+import android.net.Uri;
+
+import junit.framework.TestCase;
+
+
+public class ExtensionDataCodecTest extends TestCase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+
+    public void testRoundTrip() {
+        ExtensionData data = new ExtensionData()
+                .visible(true)
+                .icon(42)
+                .status("12")
+                .expandedTitle("12 unread messages")
+                .expandedBody("Work (10)\nPrivate (2) \u00e4\u20ac\ud83d\udce7")
+                .clickIntent(new Intent(Intent.ACTION_MAIN).setPackage("com.fsck.k9"))
+                .contentDescription("12 unread")
+                .iconUri(Uri.parse("content://example/icon"));
+
+        ExtensionData decoded = roundTrip(data);
+
+        assertTrue(ExtensionData.equals(data, decoded));
+        assertEquals(data.clickIntent().toUri(0), decoded.clickIntent().toUri(0));
+        assertEquals(data.iconUri(), decoded.iconUri());
+    }
+
+    public void testSameResultAsJson() {
+        ExtensionData data = new ExtensionData()
+                .visible(true)
+                .icon(42)
+                .status("12")
+                .expandedTitle("12 unread messages")
+                .expandedBody("Work (10)\nPrivate (2) \u00e4\u20ac\ud83d\udce7")
+                .clickIntent(new Intent(Intent.ACTION_MAIN).setPackage("com.fsck.k9"))
+                .contentDescription("12 unread")
+                .iconUri(Uri.parse("content://example/icon"));
+
+        ExtensionData fromCodec = roundTrip(data);
+        ExtensionData fromJson = decodeJson(encodeJson(data));
+
+        assertTrue(ExtensionData.equals(fromJson, fromCodec));
+    }
+
+    public void testRoundTripWithDefaults() {
+        ExtensionData data = new ExtensionData();
+
+        ExtensionData decoded = roundTrip(data);
+
+        assertTrue(ExtensionData.equals(data, decoded));
+        assertFalse(decoded.visible());
+        assertNull(decoded.status());
+        assertNull(decoded.expandedBody());
+        assertNull(decoded.clickIntent());
+        assertNull(decoded.iconUri());
+    }
+
+    public void testRoundTripWithEmptyStrings() {
+        ExtensionData data = new ExtensionData().status("").expandedTitle("");
+
+        ExtensionData decoded = roundTrip(data);
+
+        assertEquals("", decoded.status());
+        assertEquals("", decoded.expandedTitle());
+    }
+
+    public void testDecodeLeavesPositionBehindRecord() {
+        byte[] first = ExtensionDataCodec.encode(new ExtensionData().status("first"));
+        byte[] second = ExtensionDataCodec.encode(new ExtensionData().status("second"));
+        ByteBuffer in = ByteBuffer.allocate(first.length + second.length + 4);
+        in.put(first).put(second).putInt(0x12345678).flip();
+
+        assertEquals("first", ExtensionDataCodec.decode(in).status());
+        assertEquals("second", ExtensionDataCodec.decode(in).status());
+        assertEquals(0x12345678, in.getInt());
+    }
+
+    public void testDecodeVersion1() {
+        byte[] status = ExtensionDataCodec.encodeString("3");
+        byte[] body = ExtensionDataCodec.encodeString("Inbox (3)");
+        int recordSize = 2 + 1 + 4 + ExtensionDataCodec.getEncodedSize(status) +
+                ExtensionDataCodec.getEncodedSize(null) + ExtensionDataCodec.getEncodedSize(body) +
+                ExtensionDataCodec.getEncodedSize(null);
+
+        ByteBuffer out = ByteBuffer.allocate(4 + recordSize);
+        out.putInt(recordSize);
+        out.putShort((short) 1);
+        out.put((byte) 1);
+        out.putInt(7);
+        ExtensionDataCodec.putString(out, status);
+        ExtensionDataCodec.putString(out, null);
+        ExtensionDataCodec.putString(out, body);
+        ExtensionDataCodec.putString(out, null);
+        out.flip();
+
+        ExtensionData data = ExtensionDataCodec.decode(out);
+
+        assertTrue(data.visible());
+        assertEquals(7, data.icon());
+        assertEquals("3", data.status());
+        assertNull(data.expandedTitle());
+        assertEquals("Inbox (3)", data.expandedBody());
+        assertNull(data.contentDescription());
+        assertFalse(out.hasRemaining());
+    }
+
+    public void testDecodeSkipsUnknownFields() {
+        byte[] record = ExtensionDataCodec.encode(new ExtensionData().status("5"));
+        byte[] extra = ExtensionDataCodec.encodeString("added by a newer version");
+        int extraSize = ExtensionDataCodec.getEncodedSize(extra);
+
+        // Pretend a newer version appended a field
+        ByteBuffer out = ByteBuffer.allocate(record.length + extraSize + 4);
+        out.put(record);
+        ExtensionDataCodec.putString(out, extra);
+        out.putInt(0x12345678);
+        out.putInt(0, record.length - 4 + extraSize);
+        out.putShort(4, (short) (ExtensionDataCodec.VERSION + 1));
+        out.flip();
+
+        ExtensionData data = ExtensionDataCodec.decode(out);
+
+        assertEquals("5", data.status());
+        assertEquals(0x12345678, out.getInt());
+    }
+
+    public void testDecodeTruncatedRecord() {
+        byte[] record = ExtensionDataCodec.encode(new ExtensionData().status("12"));
+
+        for (int length = 0; length < record.length; length++) {
+            ByteBuffer in = ByteBuffer.wrap(Arrays.copyOf(record, length));
+            assertDecodeFails(in);
+        }
+    }
+
+    public void testDecodeInvalidRecordSize() {
+        byte[] record = ExtensionDataCodec.encode(new ExtensionData().status("12"));
+
+        ByteBuffer in = ByteBuffer.wrap(record.clone());
+        in.putInt(0, -1);
+        assertDecodeFails(in);
+
+        in = ByteBuffer.wrap(record.clone());
+        in.putInt(0, 3);
+        assertDecodeFails(in);
+
+        in = ByteBuffer.wrap(record.clone());
+        in.putInt(0, record.length);
+        assertDecodeFails(in);
+    }
+
+    public void testDecodeRecordSizeTooSmallForFields() {
+        byte[] record = ExtensionDataCodec.encode(new ExtensionData().status("12"));
+        ByteBuffer in = ByteBuffer.allocate(record.length + 64);
+        in.put(record).position(0);
+        in.putInt(0, record.length - 4 - 1);
+
+        assertDecodeFails(in);
+    }
+
+    public void testDecodeInvalidVersion() {
+        byte[] record = ExtensionDataCodec.encode(new ExtensionData());
+        ByteBuffer in = ByteBuffer.wrap(record);
+        in.putShort(4, (short) 0);
+
+        assertDecodeFails(in);
+    }
+
+    public void testDecodeInvalidStringLength() {
+        byte[] record = ExtensionDataCodec.encode(new ExtensionData().status("12"));
+        // Length of the status string, right behind the fixed part
+        int offset = 4 + 2 + 1 + 4;
+
+        ByteBuffer in = ByteBuffer.wrap(record.clone());
+        in.putInt(offset, -2);
+        assertDecodeFails(in);
+
+        in = ByteBuffer.wrap(record.clone());
+        in.putInt(offset, Integer.MAX_VALUE);
+        assertDecodeFails(in);
+    }
+
+    public void testDecodeGarbage() {
+        byte[] garbage = new byte[256];
+        for (int i = 0; i < garbage.length; i++) {
+            garbage[i] = (byte) (i * 31 + 7);
+        }
+
+        assertDecodeFails(ByteBuffer.wrap(garbage));
+    }
+
+    public void testStringRoundTrip() {
+        String[] values = { null, "", "a", "\u00fc\u00df\ud83d\udce7" };
+        for (String value : values) {
+            byte[] encoded = ExtensionDataCodec.encodeString(value);
+            ByteBuffer buffer = ByteBuffer.allocate(ExtensionDataCodec.getEncodedSize(encoded));
+            ExtensionDataCodec.putString(buffer, encoded);
+            assertFalse(buffer.hasRemaining());
+
+            buffer.flip();
+            assertEquals(value, ExtensionDataCodec.getString(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    public void testStringFromDirectBuffer() {
+        byte[] encoded = ExtensionDataCodec.encodeString("direct");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ExtensionDataCodec.getEncodedSize(encoded));
+        ExtensionDataCodec.putString(buffer, encoded);
+        buffer.flip();
+
+        assertEquals("direct", ExtensionDataCodec.getString(buffer));
+    }
+
+    /**
+     * Encodes data the way snapshots were stored as JSON.
+     */
+    static byte[] encodeJson(ExtensionData data) {
+        try {
+            return data.serialize().toString().getBytes(UTF_8);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static ExtensionData decodeJson(byte[] json) {
+        try {
+            ExtensionData data = new ExtensionData();
+            data.deserialize(new JSONObject(new String(json, UTF_8)));
+            return data;
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ExtensionData roundTrip(ExtensionData data) {
+        byte[] record = ExtensionDataCodec.encode(data);
+        ByteBuffer in = ByteBuffer.wrap(record);
+
+        ExtensionData decoded = ExtensionDataCodec.decode(in);
+
+        assertFalse(in.hasRemaining());
+        return decoded;
+    }
+
+    private static void assertDecodeFails(ByteBuffer in) {
+        try {
+            ExtensionDataCodec.decode(in);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
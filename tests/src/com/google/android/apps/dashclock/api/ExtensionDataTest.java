@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Parcel;
+import android.text.TextUtils;
+
+import junit.framework.TestCase;
+
+
+public class ExtensionDataTest extends TestCase {
+    private static final int SENTINEL = 0x5e47121e;
+
+
+    public void testClickIntentSurvivesParcel() {
+        Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("email://messages/0/INBOX/1"))
+                .setClassName("com.fsck.k9", "com.fsck.k9.activity.MessageList")
+                .addCategory(Intent.CATEGORY_DEFAULT)
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP)
+                .putExtra("account", "uuid-0")
+                .putExtra("unread", 12);
+        ExtensionData data = new ExtensionData().status("12").clickIntent(intent);
+
+        ExtensionData unparceled = parcelAndUnparcel(data);
+        Intent clickIntent = unparceled.clickIntent();
+
+        assertNotNull(clickIntent);
+        assertTrue(intent.filterEquals(clickIntent));
+        assertEquals(intent.getFlags(), clickIntent.getFlags());
+        assertEquals("uuid-0", clickIntent.getStringExtra("account"));
+        assertEquals(12, clickIntent.getIntExtra("unread", 0));
+        assertEquals(intent.toUri(0), clickIntent.toUri(0));
+        assertTrue(ExtensionData.equals(data, unparceled));
+    }
+
+    public void testClickIntentIsParsedOnce() {
+        ExtensionData data = new ExtensionData()
+                .clickIntent(new Intent(Intent.ACTION_MAIN).setPackage("com.fsck.k9"));
+
+        ExtensionData unparceled = parcelAndUnparcel(data);
+
+        assertSame(unparceled.clickIntent(), unparceled.clickIntent());
+    }
+
+    public void testNoClickIntentSurvivesParcel() {
+        ExtensionData unparceled = parcelAndUnparcel(new ExtensionData().status("1"));
+
+        assertNull(unparceled.clickIntent());
+    }
+
+    public void testVersion2RoundTrip() {
+        ExtensionData data = new ExtensionData()
+                .visible(true)
+                .icon(42)
+                .status("12")
+                .expandedTitle("12 unread messages")
+                .expandedBody("Work (10)\nPrivate (2)")
+                .clickIntent(new Intent(Intent.ACTION_MAIN).setPackage("com.fsck.k9"))
+                .contentDescription("12 unread messages in 2 accounts")
+                .iconUri(Uri.parse("content://de.cketti.dashclock.k9/icon"));
+
+        ExtensionData unparceled = parcelAndUnparcel(data);
+
+        assertTrue(ExtensionData.equals(data, unparceled));
+        assertTrue(unparceled.visible());
+        assertEquals(42, unparceled.icon());
+        assertEquals("12", unparceled.status());
+        assertEquals("12 unread messages", unparceled.expandedTitle());
+        assertEquals("Work (10)\nPrivate (2)", unparceled.expandedBody());
+        assertEquals("12 unread messages in 2 accounts", unparceled.contentDescription());
+        assertEquals(Uri.parse("content://de.cketti.dashclock.k9/icon"), unparceled.iconUri());
+    }
+
+    public void testVersion2RoundTripWithDefaults() {
+        ExtensionData unparceled = parcelAndUnparcel(new ExtensionData());
+
+        assertNull(unparceled.status());
+        assertNull(unparceled.contentDescription());
+        assertNull(unparceled.iconUri());
+    }
+
+    public void testWriteLeavesPositionBehindData() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            new ExtensionData().status("1").contentDescription("one").writeToParcel(parcel, 0);
+            parcel.writeInt(SENTINEL);
+
+            parcel.setDataPosition(0);
+            ExtensionData.CREATOR.createFromParcel(parcel);
+
+            assertEquals(SENTINEL, parcel.readInt());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testReadSkipsUnknownTrailingFields() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            // What a future version 3 might write
+            parcel.writeInt(3);
+            int sizePosition = parcel.dataPosition();
+            parcel.writeInt(0);
+            int startPosition = parcel.dataPosition();
+            parcel.writeInt(1);
+            parcel.writeInt(7);
+            parcel.writeString("3");
+            parcel.writeString("3 unread messages");
+            parcel.writeString("Inbox (3)");
+            parcel.writeString("");
+            parcel.writeString("3 unread");
+            parcel.writeString("content://example/icon");
+            // Fields unknown to version 2
+            parcel.writeString("added in version 3");
+            parcel.writeLong(Long.MAX_VALUE);
+            parcel.writeInt(SENTINEL + 1);
+            int endPosition = parcel.dataPosition();
+            parcel.setDataPosition(sizePosition);
+            parcel.writeInt(endPosition - startPosition);
+            parcel.setDataPosition(endPosition);
+            parcel.writeInt(SENTINEL);
+
+            parcel.setDataPosition(0);
+            ExtensionData data = ExtensionData.CREATOR.createFromParcel(parcel);
+
+            assertEquals(endPosition, parcel.dataPosition());
+            assertEquals(SENTINEL, parcel.readInt());
+            assertTrue(data.visible());
+            assertEquals(7, data.icon());
+            assertEquals("3", data.status());
+            assertEquals("Inbox (3)", data.expandedBody());
+            assertNull(data.clickIntent());
+            assertEquals("3 unread", data.contentDescription());
+            assertEquals(Uri.parse("content://example/icon"), data.iconUri());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testReadVersion1() {
+        ExtensionData data = new ExtensionData()
+                .visible(true)
+                .icon(7)
+                .status("3")
+                .expandedTitle("3 unread messages")
+                .expandedBody("Inbox (3)")
+                .clickIntent(new Intent(Intent.ACTION_MAIN).setPackage("com.fsck.k9"));
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            writeVersion1(parcel, data);
+            int endPosition = parcel.dataPosition();
+            parcel.writeInt(SENTINEL);
+
+            parcel.setDataPosition(0);
+            ExtensionData unparceled = ExtensionData.CREATOR.createFromParcel(parcel);
+
+            assertEquals(endPosition, parcel.dataPosition());
+            assertEquals(SENTINEL, parcel.readInt());
+            assertTrue(ExtensionData.equals(data, unparceled));
+            assertNull(unparceled.contentDescription());
+            assertNull(unparceled.iconUri());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Writes {@code data} the way version 1 of {@link ExtensionData} did. Version 2 fields are
+     * left out.
+     */
+    @SuppressWarnings("deprecation")
+    static void writeVersion1(Parcel parcel, ExtensionData data) {
+        parcel.writeInt(1);
+        parcel.writeInt(ExtensionData.PARCELABLE_SIZE);
+        parcel.writeInt(data.visible() ? 1 : 0);
+        parcel.writeInt(data.icon());
+        parcel.writeString(TextUtils.isEmpty(data.status()) ? "" : data.status());
+        parcel.writeString(TextUtils.isEmpty(data.expandedTitle()) ? "" : data.expandedTitle());
+        parcel.writeString(TextUtils.isEmpty(data.expandedBody()) ? "" : data.expandedBody());
+        parcel.writeString((data.clickIntentUri() == null) ? "" : data.clickIntentUri());
+    }
+
+    static ExtensionData parcelAndUnparcel(ExtensionData data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            data.writeToParcel(parcel, 0);
+            int end = parcel.dataPosition();
+
+            parcel.setDataPosition(0);
+            ExtensionData unparceled = ExtensionData.CREATOR.createFromParcel(parcel);
+
+            assertEquals(end, parcel.dataPosition());
+            return unparceled;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import java.util.Locale;
+
+import android.os.Debug;
+import android.util.Log;
+
+
+/**
+ * Runs an operation many times and logs the average time and allocations per run.
+ *
+ * <p>Time and allocations are measured in separate passes, because counting allocations with
+ * {@link Debug#startAllocCounting()} slows them down. Only allocations of the calling thread are
+ * counted. Results are written to logcat (tag {@value #TAG}).</p>
+ */
+public final class Microbenchmark {
+    public static final String TAG = "Microbenchmark";
+
+    private static final int WARMUP_RUNS = 100;
+
+
+    /**
+     * The averages of one measurement.
+     */
+    public static class Result {
+        public final long nanosPerRun;
+        public final double allocationsPerRun;
+        public final double bytesPerRun;
+
+        Result(long nanosPerRun, double allocationsPerRun, double bytesPerRun) {
+            this.nanosPerRun = nanosPerRun;
+            this.allocationsPerRun = allocationsPerRun;
+            this.bytesPerRun = bytesPerRun;
+        }
+    }
+
+
+    private Microbenchmark() {
+    }
+
+    /**
+     * Runs {@code operation} {@code runs} times after a warm-up of up to {@value #WARMUP_RUNS}
+     * runs and logs the result.
+     *
+     * @param name
+     *         Identifies the measurement in the log.
+     */
+    public static Result measure(String name, int runs, Runnable operation) {
+        for (int i = 0, warmupRuns = Math.min(WARMUP_RUNS, runs); i < warmupRuns; i++) {
+            operation.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            operation.run();
+        }
+        long duration = System.nanoTime() - start;
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < runs; i++) {
+                operation.run();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        Result result = new Result(duration / runs,
+                (double) Debug.getThreadAllocCount() / runs,
+                (double) Debug.getThreadAllocSize() / runs);
+
+        Log.i(TAG, String.format(Locale.US, "%s: %d ns, %.1f allocations, %.0f bytes per run",
+                name, result.nanosPerRun, result.allocationsPerRun, result.bytesPerRun));
+
+        return result;
+    }
+}
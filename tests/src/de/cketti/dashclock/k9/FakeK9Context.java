@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.Collections;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockPackageManager;
+
+
+/**
+ * Context that makes the code under test talk to a {@link FakeMessageProvider} and believe K-9
+ * Mail is installed, set up, and accessible.
+ *
+ * <p>Everything else (preferences, files, broadcasts) is passed on to the wrapped context.</p>
+ */
+public class FakeK9Context extends ContextWrapper {
+    private final MockContentResolver mContentResolver = new MockContentResolver();
+    private final PackageManager mPackageManager = new FakePackageManager();
+
+
+    public FakeK9Context(Context base, FakeMessageProvider provider) {
+        super(base);
+
+        provider.attach(this);
+        mContentResolver.addProvider(K9Helper.AUTHORITY, provider);
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return mContentResolver;
+    }
+
+    @Override
+    public PackageManager getPackageManager() {
+        return mPackageManager;
+    }
+
+    /**
+     * Answers the checks made by {@link K9Environment}.
+     */
+    private static class FakePackageManager extends MockPackageManager {
+
+        @Override
+        public PackageInfo getPackageInfo(String packageName, int flags)
+                throws NameNotFoundException {
+            if (!K9Helper.PACKAGE_NAME.equals(packageName)) {
+                throw new NameNotFoundException(packageName);
+            }
+
+            PackageInfo packageInfo = new PackageInfo();
+            packageInfo.packageName = packageName;
+            return packageInfo;
+        }
+
+        @Override
+        public List<ResolveInfo> queryIntentActivities(Intent intent, int flags) {
+            if (!K9Helper.PACKAGE_NAME.equals(intent.getPackage())) {
+                return Collections.emptyList();
+            }
+
+            ResolveInfo resolveInfo = new ResolveInfo();
+            resolveInfo.activityInfo = new ActivityInfo();
+            resolveInfo.activityInfo.packageName = K9Helper.PACKAGE_NAME;
+            resolveInfo.activityInfo.name = "com.fsck.k9.activity.MessageCompose";
+            return Collections.singletonList(resolveInfo);
+        }
+
+        @Override
+        public int checkPermission(String permName, String pkgName) {
+            return K9Helper.PERMISSION.equals(permName) ?
+                    PERMISSION_GRANTED : PERMISSION_DENIED;
+        }
+
+        @Override
+        public Intent getLaunchIntentForPackage(String packageName) {
+            if (!K9Helper.PACKAGE_NAME.equals(packageName)) {
+                return null;
+            }
+
+            Intent intent = new Intent(Intent.ACTION_MAIN);
+            intent.setClassName(packageName, "com.fsck.k9.activity.Accounts");
+            return intent;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import de.cketti.dashclock.k9.K9Helper.AccountColumns;
+import de.cketti.dashclock.k9.K9Helper.AccountUnreadColumns;
+import de.cketti.dashclock.k9.K9Helper.BroadcastIntents;
+
+
+/**
+ * Stand-in for K-9 Mail's {@code com.fsck.k9.messageprovider}.
+ *
+ * <p>Serves the accounts and account_unread URIs and the
+ * {@link K9Helper#METHOD_GET_UNREAD_COUNTS} method like K-9 Mail does. The number of accounts,
+ * the time each call takes, and whether calls fail can be changed at any time. Every call is
+ * counted.</p>
+ *
+ * <p>Register it with a {@link android.test.mock.MockContentResolver} (see
+ * {@link FakeK9Context}), so it doesn't conflict with an installed copy of K-9 Mail.</p>
+ *
+ * <p>Account {@code n} is named "Account n", has the UUID "uuid-n", and {@code n + 1} unread
+ * messages, unless changed with {@link #setUnreadCount(int, int)}.</p>
+ */
+public class FakeMessageProvider extends ContentProvider {
+    private static final int ACCOUNTS = 1;
+    private static final int ACCOUNT_UNREAD = 2;
+
+    private static final int MAX_ACCOUNTS = 10000;
+
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        sUriMatcher.addURI(K9Helper.AUTHORITY, "accounts", ACCOUNTS);
+        sUriMatcher.addURI(K9Helper.AUTHORITY, "account_unread/#", ACCOUNT_UNREAD);
+    }
+
+    private volatile int mAccountCount = 1;
+    private final int[] mUnreadCounts = new int[MAX_ACCOUNTS];
+    private volatile long mLatency = 0;
+    private volatile boolean mBulkSupported = true;
+    private volatile boolean mFailing = false;
+
+    private final AtomicInteger mAccountQueryCount = new AtomicInteger();
+    private final AtomicInteger mUnreadQueryCount = new AtomicInteger();
+    private final AtomicInteger mCallCount = new AtomicInteger();
+
+
+    public FakeMessageProvider() {
+        for (int i = 0; i < MAX_ACCOUNTS; i++) {
+            mUnreadCounts[i] = i + 1;
+        }
+    }
+
+    /**
+     * Attaches the provider to a context. Needed to send broadcasts.
+     */
+    public void attach(Context context) {
+        attachInfo(context, null);
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    /**
+     * Sets the number of accounts returned by the accounts URI.
+     */
+    public void setAccountCount(int accountCount) {
+        if (accountCount < 0 || accountCount > MAX_ACCOUNTS) {
+            throw new IllegalArgumentException("Invalid account count: " + accountCount);
+        }
+        mAccountCount = accountCount;
+    }
+
+    public void setUnreadCount(int accountNumber, int unreadCount) {
+        synchronized (mUnreadCounts) {
+            mUnreadCounts[accountNumber] = unreadCount;
+        }
+    }
+
+    /**
+     * Sets the time in milliseconds each query and call blocks before it returns.
+     */
+    public void setLatency(long latencyMillis) {
+        mLatency = latencyMillis;
+    }
+
+    /**
+     * Determines whether the provider answers {@link K9Helper#METHOD_GET_UNREAD_COUNTS}. If not,
+     * it behaves like versions of K-9 Mail that don't know the method.
+     */
+    public void setBulkSupported(boolean supported) {
+        mBulkSupported = supported;
+    }
+
+    /**
+     * Makes all queries and calls throw an exception, e.g. because K-9 Mail's database is
+     * locked.
+     */
+    public void setFailing(boolean failing) {
+        mFailing = failing;
+    }
+
+    public int getAccountQueryCount() {
+        return mAccountQueryCount.get();
+    }
+
+    public int getUnreadQueryCount() {
+        return mUnreadQueryCount.get();
+    }
+
+    public int getCallCount() {
+        return mCallCount.get();
+    }
+
+    /**
+     * Returns the number of queries and calls made since the last {@link #resetCounters()}.
+     */
+    public int getTotalCount() {
+        return getAccountQueryCount() + getUnreadQueryCount() + getCallCount();
+    }
+
+    public void resetCounters() {
+        mAccountQueryCount.set(0);
+        mUnreadQueryCount.set(0);
+        mCallCount.set(0);
+    }
+
+    /**
+     * Sends {@link BroadcastIntents#ACTION_EMAIL_RECEIVED} for a message in the given account.
+     *
+     * @param resultReceiver
+     *         Called on the main thread after all receivers got the broadcast. May be
+     *         {@code null}.
+     */
+    public void sendEmailReceived(int accountNumber, BroadcastReceiver resultReceiver) {
+        sendMessageBroadcast(BroadcastIntents.ACTION_EMAIL_RECEIVED, accountNumber,
+                resultReceiver);
+    }
+
+    /**
+     * Sends {@link BroadcastIntents#ACTION_EMAIL_DELETED} for a message in the given account.
+     *
+     * @param resultReceiver
+     *         Called on the main thread after all receivers got the broadcast. May be
+     *         {@code null}.
+     */
+    public void sendEmailDeleted(int accountNumber, BroadcastReceiver resultReceiver) {
+        sendMessageBroadcast(BroadcastIntents.ACTION_EMAIL_DELETED, accountNumber,
+                resultReceiver);
+    }
+
+    /**
+     * Sends {@link BroadcastIntents#ACTION_REFRESH_OBSERVER}.
+     *
+     * @param resultReceiver
+     *         Called on the main thread after all receivers got the broadcast. May be
+     *         {@code null}.
+     */
+    public void sendRefresh(BroadcastReceiver resultReceiver) {
+        sendBroadcast(new Intent(BroadcastIntents.ACTION_REFRESH_OBSERVER), resultReceiver);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        switch (sUriMatcher.match(uri)) {
+            case ACCOUNTS: {
+                mAccountQueryCount.incrementAndGet();
+                simulateWork();
+                return getAccounts();
+            }
+            case ACCOUNT_UNREAD: {
+                mUnreadQueryCount.incrementAndGet();
+                simulateWork();
+                return getAccountUnread(Integer.parseInt(uri.getLastPathSegment()));
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown URI: " + uri);
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        mCallCount.incrementAndGet();
+        if (!mBulkSupported || !K9Helper.METHOD_GET_UNREAD_COUNTS.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+
+        simulateWork();
+
+        int accountCount = mAccountCount;
+        Bundle result = new Bundle();
+        synchronized (mUnreadCounts) {
+            for (int i = 0; i < accountCount; i++) {
+                result.putInt(getUuid(i), mUnreadCounts[i]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    static String getUuid(int accountNumber) {
+        return "uuid-" + accountNumber;
+    }
+
+    static String getName(int accountNumber) {
+        return "Account " + accountNumber;
+    }
+
+    private void simulateWork() {
+        long latency = mLatency;
+        if (latency > 0) {
+            SystemClock.sleep(latency);
+        }
+
+        if (mFailing) {
+            throw new IllegalStateException("Injected failure");
+        }
+    }
+
+    private Cursor getAccounts() {
+        String[] columns = {
+                AccountColumns.NUMBER,
+                AccountColumns.NAME,
+                AccountColumns.UUID,
+                AccountColumns.COLOR
+        };
+
+        int accountCount = mAccountCount;
+        MatrixCursor cursor = new MatrixCursor(columns, accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            cursor.addRow(new Object[] { i, getName(i), getUuid(i), 0xFF0000FF });
+        }
+        return cursor;
+    }
+
+    private Cursor getAccountUnread(int accountNumber) {
+        String[] columns = {
+                AccountUnreadColumns.NAME,
+                AccountUnreadColumns.UNREAD
+        };
+
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        if (accountNumber < mAccountCount) {
+            int unreadCount;
+            synchronized (mUnreadCounts) {
+                unreadCount = mUnreadCounts[accountNumber];
+            }
+            cursor.addRow(new Object[] { getName(accountNumber), unreadCount });
+        }
+        return cursor;
+    }
+
+    private void sendMessageBroadcast(String action, int accountNumber,
+            BroadcastReceiver resultReceiver) {
+        // Same format as K-9 Mail: email://messages/<account number>/<folder>/<uid>
+        Uri uri = Uri.parse("email://messages/" + accountNumber + "/INBOX/1");
+        Intent intent = new Intent(action, uri);
+        intent.putExtra(BroadcastIntents.EXTRA_ACCOUNT, getName(accountNumber));
+        intent.putExtra(BroadcastIntents.EXTRA_FOLDER, "INBOX");
+
+        sendBroadcast(intent, resultReceiver);
+    }
+
+    private void sendBroadcast(Intent intent, BroadcastReceiver resultReceiver) {
+        Context context = getContext();
+        if (resultReceiver == null) {
+            context.sendBroadcast(intent);
+        } else {
+            // Ordered, so we know when all receivers are done
+            context.sendOrderedBroadcast(intent, null, resultReceiver, null, 0, null, null);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.ServiceTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.android.apps.dashclock.api.DashClockExtension;
+
+
+/**
+ * Measures how long {@link K9Extension} updates take and how many calls to K-9 Mail's content
+ * provider they make, using {@link FakeMessageProvider}.
+ *
+ * <p>Updates are run on the test thread by calling {@link K9Extension#onUpdateData(int)}
+ * directly, except where the test is about the way from K-9 Mail's broadcast to the update.
+ * Results are written to logcat (tag {@value #TAG}).</p>
+ */
+@LargeTest
+public class K9ExtensionLoadTest extends ServiceTestCase<K9Extension> {
+    private static final String TAG = "K9ExtensionLoadTest";
+
+    private static final int[] ACCOUNT_COUNTS = { 1, 10, 100, 1000 };
+
+    /**
+     * Time in milliseconds we allow on top of the expected duration of an update.
+     */
+    private static final long SLACK = 2000;
+
+    private FakeMessageProvider mProvider;
+    private K9Extension mExtension;
+
+
+    public K9ExtensionLoadTest() {
+        super(K9Extension.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mProvider = new FakeMessageProvider();
+        Context context = new FakeK9Context(getContext(), mProvider);
+        setContext(context);
+
+        // Start from scratch: default settings, no saved snapshot, nothing cached
+        PreferenceManager.getDefaultSharedPreferences(context).edit().clear().commit();
+        context.deleteFile(SnapshotStore.FILE_NAME);
+        resetCaches();
+
+        setupService();
+        mExtension = getService();
+        mExtension.onInitialize(false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        resetCaches();
+    }
+
+    public void testFullUpdateWithBulkMethod() {
+        for (int accountCount : ACCOUNT_COUNTS) {
+            mProvider.setAccountCount(accountCount);
+            resetCaches();
+
+            long duration = measureUpdate(DashClockExtension.UPDATE_REASON_INITIAL);
+            report("full update, bulk", accountCount, duration);
+
+            assertEquals(1, mProvider.getAccountQueryCount());
+            assertEquals(1, mProvider.getCallCount());
+            assertEquals(0, mProvider.getUnreadQueryCount());
+        }
+    }
+
+    public void testFullUpdateWithoutBulkMethod() {
+        mProvider.setBulkSupported(false);
+
+        for (int accountCount : ACCOUNT_COUNTS) {
+            mProvider.setAccountCount(accountCount);
+            AccountRepository.invalidate();
+
+            long duration = measureUpdate(DashClockExtension.UPDATE_REASON_INITIAL);
+            report("full update, per account", accountCount, duration);
+
+            // The bulk method is only tried once
+            int expectedCalls = (accountCount == ACCOUNT_COUNTS[0]) ? 1 : 0;
+            assertEquals(1, mProvider.getAccountQueryCount());
+            assertEquals(expectedCalls, mProvider.getCallCount());
+            assertEquals(accountCount, mProvider.getUnreadQueryCount());
+        }
+    }
+
+    public void testRepeatedFullUpdateReusesAccounts() {
+        mProvider.setAccountCount(10);
+        measureUpdate(DashClockExtension.UPDATE_REASON_INITIAL);
+
+        long duration = measureUpdate(DashClockExtension.UPDATE_REASON_PERIODIC);
+        report("periodic update", 10, duration);
+
+        assertEquals(0, mProvider.getAccountQueryCount());
+        assertEquals(1, mProvider.getCallCount());
+    }
+
+    public void testIncrementalUpdateDoesNotQuery() {
+        for (int accountCount : ACCOUNT_COUNTS) {
+            mProvider.setAccountCount(accountCount);
+            resetCaches();
+            measureUpdate(DashClockExtension.UPDATE_REASON_INITIAL);
+
+            long duration = measureUpdate(DashClockExtension.UPDATE_REASON_CONTENT_CHANGED);
+            report("incremental update", accountCount, duration);
+
+            assertEquals(0, mProvider.getTotalCount());
+        }
+    }
+
+    public void testEmailReceivedBroadcastDoesNotQuery() throws Exception {
+        mProvider.setAccountCount(10);
+        measureUpdate(DashClockExtension.UPDATE_REASON_INITIAL);
+
+        // Stay below the number of deltas after which the table is queried again
+        for (int i = 0; i < 3; i++) {
+            awaitBroadcast(new Sender() {
+                @Override
+                public void send(BroadcastReceiver resultReceiver) {
+                    mProvider.sendEmailReceived(3, resultReceiver);
+                }
+            });
+        }
+
+        long duration = measureUpdate(DashClockExtension.UPDATE_REASON_CONTENT_CHANGED);
+        report("update after 3 received", 10, duration);
+
+        assertEquals(0, mProvider.getTotalCount());
+    }
+
+    public void testEmailDeletedBroadcastTriggersFullUpdate() throws Exception {
+        mProvider.setAccountCount(10);
+        measureUpdate(DashClockExtension.UPDATE_REASON_INITIAL);
+        mProvider.resetCounters();
+
+        // Let the extension schedule and run the update itself
+        long start = SystemClock.elapsedRealtime();
+        mProvider.sendEmailDeleted(3, null);
+
+        long timeout = K9Extension.UPDATE_MAX_LATENCY + SLACK;
+        while (mProvider.getCallCount() == 0) {
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            assertTrue("No update within " + timeout + " ms", elapsed < timeout);
+            SystemClock.sleep(10);
+        }
+        report("broadcast to query", 10, SystemClock.elapsedRealtime() - start);
+
+        assertEquals(0, mProvider.getAccountQueryCount());
+        assertEquals(0, mProvider.getUnreadQueryCount());
+    }
+
+    public void testRefreshBroadcastQueriesAccounts() throws Exception {
+        mProvider.setAccountCount(10);
+        measureUpdate(DashClockExtension.UPDATE_REASON_INITIAL);
+
+        awaitBroadcast(new Sender() {
+            @Override
+            public void send(BroadcastReceiver resultReceiver) {
+                mProvider.sendRefresh(resultReceiver);
+            }
+        });
+
+        measureUpdate(DashClockExtension.UPDATE_REASON_CONTENT_CHANGED);
+
+        assertEquals(1, mProvider.getAccountQueryCount());
+        assertEquals(1, mProvider.getCallCount());
+    }
+
+    public void testSlowProviderTimesOut() {
+        mProvider.setAccountCount(10);
+        mProvider.setLatency(K9Extension.QUERY_TIMEOUT * 2);
+
+        long duration = measureUpdate(DashClockExtension.UPDATE_REASON_INITIAL);
+        report("accounts timed out", 10, duration);
+
+        assertTrue("Took " + duration + " ms", duration < K9Extension.QUERY_TIMEOUT + SLACK);
+    }
+
+    public void testSlowUnreadCountsFallBackToLastKnownValues() {
+        mProvider.setAccountCount(10);
+        measureUpdate(DashClockExtension.UPDATE_REASON_INITIAL);
+
+        mProvider.setLatency(K9Extension.QUERY_TIMEOUT * 2);
+        long timeouts = K9Helper.getTimeoutCount();
+
+        long duration = measureUpdate(DashClockExtension.UPDATE_REASON_PERIODIC);
+        report("unread counts timed out", 10, duration);
+
+        assertTrue("Took " + duration + " ms", duration < K9Extension.QUERY_TIMEOUT + SLACK);
+        assertEquals(timeouts + 1, K9Helper.getTimeoutCount());
+    }
+
+    public void testFailingProvider() {
+        mProvider.setAccountCount(10);
+        measureUpdate(DashClockExtension.UPDATE_REASON_INITIAL);
+
+        mProvider.setFailing(true);
+        measureUpdate(DashClockExtension.UPDATE_REASON_PERIODIC);
+
+        // The bulk method failed and so did the per-account queries
+        assertEquals(1, mProvider.getCallCount());
+        assertEquals(10, mProvider.getUnreadQueryCount());
+
+        // An error doesn't mean K-9 Mail doesn't support the bulk method
+        mProvider.setFailing(false);
+        measureUpdate(DashClockExtension.UPDATE_REASON_PERIODIC);
+
+        assertEquals(1, mProvider.getCallCount());
+        assertEquals(0, mProvider.getUnreadQueryCount());
+    }
+
+    /**
+     * Runs an update on the calling thread.
+     *
+     * @return The duration of the update in milliseconds. The provider's counters contain the
+     *         calls made by the update.
+     */
+    private long measureUpdate(int reason) {
+        mProvider.resetCounters();
+
+        long start = SystemClock.elapsedRealtime();
+        mExtension.onUpdateData(reason);
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Sends a broadcast and waits until all receivers got it.
+     */
+    private void awaitBroadcast(Sender sender) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        sender.send(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                latch.countDown();
+            }
+        });
+
+        assertTrue("Broadcast wasn't delivered", latch.await(SLACK, TimeUnit.MILLISECONDS));
+    }
+
+    private void report(String name, int accountCount, long durationMillis) {
+        Log.i(TAG, String.format(Locale.US, "%s, %d accounts: %d ms, %d provider calls", name,
+                accountCount, durationMillis, mProvider.getTotalCount()));
+    }
+
+    private static void resetCaches() {
+        K9Environment.invalidate();
+        AccountRepository.invalidate();
+        K9Helper.resetProviderFeatures();
+    }
+
+    private interface Sender {
+        void send(BroadcastReceiver resultReceiver);
+    }
+}
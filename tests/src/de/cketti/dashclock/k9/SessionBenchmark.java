@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.android.apps.dashclock.api.Microbenchmark;
+
+import de.cketti.dashclock.k9.K9Helper.AccountUnreadColumns;
+
+
+/**
+ * Compares querying the unread counts of N accounts through one {@link K9Helper.Session} with
+ * resolving K-9 Mail's content provider for every query via {@link ContentResolver#query}.
+ *
+ * <p>One run queries all accounts. The session variant includes opening and closing the session,
+ * like an update does. Results are written to logcat (tag {@value Microbenchmark#TAG}).</p>
+ *
+ * <p>{@link FakeMessageProvider} is resolved in-process, so that run measures the client-side
+ * overhead only. Looking up a provider in another process is more expensive; if K-9 Mail is
+ * installed and readable, the comparison is repeated against it.</p>
+ */
+@LargeTest
+public class SessionBenchmark extends AndroidTestCase {
+    private static final int[] ACCOUNT_COUNTS = { 1, 10, 100 };
+
+    /**
+     * Number of queries made for each measurement, split into runs of N accounts.
+     */
+    private static final int QUERIES = 2000;
+
+
+    public void testFakeProvider() {
+        FakeMessageProvider provider = new FakeMessageProvider();
+        Context context = new FakeK9Context(getContext(), provider);
+
+        for (int accountCount : ACCOUNT_COUNTS) {
+            provider.setAccountCount(accountCount);
+            List<Account> accounts = K9Helper.getAccounts(context);
+            assertEquals(accountCount, accounts.size());
+
+            compare("fake provider", context, accounts);
+        }
+    }
+
+    public void testInstalledK9Mail() {
+        Context context = getContext();
+        List<Account> accounts = K9Helper.getAccounts(context);
+        if (accounts == null || accounts.isEmpty()) {
+            Log.i(Microbenchmark.TAG, "K-9 Mail is not installed or has no accounts. Skipping.");
+            return;
+        }
+
+        compare("K-9 Mail", context, accounts);
+    }
+
+    private void compare(String name, Context context, List<Account> accounts) {
+        int runs = Math.max(1, QUERIES / accounts.size());
+        String prefix = name + ", " + accounts.size() + " accounts, ";
+
+        int[] expected = querySession(context, accounts);
+        assertTrue(Arrays.equals(expected, queryPerCall(context, accounts)));
+
+        Microbenchmark.Result perCall = Microbenchmark.measure(prefix + "per call", runs,
+                new Query(context, accounts, false));
+        Microbenchmark.Result session = Microbenchmark.measure(prefix + "session", runs,
+                new Query(context, accounts, true));
+
+        Log.i(Microbenchmark.TAG, prefix + "session saves " +
+                (perCall.nanosPerRun - session.nanosPerRun) / accounts.size() + " ns per query");
+    }
+
+    static int[] querySession(Context context, List<Account> accounts) {
+        int[] unreadCounts = new int[accounts.size()];
+        K9Helper.Session session = K9Helper.openSession(context);
+        try {
+            for (int i = 0; i < unreadCounts.length; i++) {
+                unreadCounts[i] = session.getUnreadCount(accounts.get(i), 0);
+            }
+        } finally {
+            session.close();
+        }
+        return unreadCounts;
+    }
+
+    /**
+     * Queries every account through {@link ContentResolver#query}, i.e. the way the extension
+     * did before there were sessions.
+     */
+    static int[] queryPerCall(Context context, List<Account> accounts) {
+        ContentResolver contentResolver = context.getContentResolver();
+        int[] unreadCounts = new int[accounts.size()];
+        for (int i = 0; i < unreadCounts.length; i++) {
+            Uri uri = Uri.withAppendedPath(K9Helper.ACCOUNT_UNREAD_URI,
+                    Integer.toString(accounts.get(i).number));
+            Cursor cursor = contentResolver.query(uri, null, null, null, null);
+            if (cursor == null) {
+                unreadCounts[i] = K9Helper.UNREAD_COUNT_UNKNOWN;
+                continue;
+            }
+            try {
+                unreadCounts[i] = cursor.moveToFirst() ?
+                        cursor.getInt(AccountUnreadColumns.UNREAD_INDEX) : 0;
+            } finally {
+                cursor.close();
+            }
+        }
+        return unreadCounts;
+    }
+
+    private static class Query implements Runnable {
+        private final Context mContext;
+        private final List<Account> mAccounts;
+        private final boolean mUseSession;
+
+        Query(Context context, List<Account> accounts, boolean useSession) {
+            mContext = context;
+            mAccounts = accounts;
+            mUseSession = useSession;
+        }
+
+        @Override
+        public void run() {
+            if (mUseSession) {
+                querySession(mContext, mAccounts);
+            } else {
+                queryPerCall(mContext, mAccounts);
+            }
+        }
+    }
+}
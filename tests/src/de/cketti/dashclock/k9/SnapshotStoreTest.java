@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Christian Ketterer (cketti)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cketti.dashclock.k9;
+
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.AtomicFile;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+
+public class SnapshotStoreTest extends AndroidTestCase {
+    private static final long WRITE_TIMEOUT = 2000;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteFile(SnapshotStore.FILE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteFile(SnapshotStore.FILE_NAME);
+        super.tearDown();
+    }
+
+    public void testLoadWithoutFile() {
+        assertNull(new SnapshotStore(getContext()).load());
+    }
+
+    public void testSaveAndLoad() {
+        List<Account> accounts = Arrays.asList(
+                new Account(0, "Work", "uuid-0", 0xFFFF0000),
+                new Account(3, "Private \u00e4", "uuid-3", 0xFF00FF00));
+        int[] unreadCounts = { 10, 2 };
+        ExtensionData data = new ExtensionData()
+                .visible(true)
+                .status("12")
+                .expandedTitle("12 unread messages")
+                .expandedBody("Work (10)\nPrivate \u00e4 (2)");
+
+        SnapshotStore store = new SnapshotStore(getContext());
+        store.save(data, new UnreadCountTable.Snapshot(accounts, unreadCounts));
+        // Writes the snapshot right away
+        store.close();
+
+        SnapshotStore.Snapshot snapshot = awaitSnapshot();
+
+        assertTrue(ExtensionData.equals(data, snapshot.data));
+        assertTrue(Arrays.equals(unreadCounts, snapshot.unreadCounts.unreadCounts));
+        assertEquals(accounts.size(), snapshot.unreadCounts.accounts.size());
+        for (int i = 0; i < accounts.size(); i++) {
+            Account expected = accounts.get(i);
+            Account actual = snapshot.unreadCounts.accounts.get(i);
+            assertEquals(expected.number, actual.number);
+            assertEquals(expected.name, actual.name);
+            assertEquals(expected.uuid, actual.uuid);
+            assertEquals(expected.color, actual.color);
+        }
+    }
+
+    public void testLoadEmptyFile() throws Exception {
+        writeFile(new byte[0]);
+
+        assertNull(new SnapshotStore(getContext()).load());
+    }
+
+    public void testLoadCorruptFile() throws Exception {
+        byte[] garbage = new byte[256];
+        for (int i = 0; i < garbage.length; i++) {
+            garbage[i] = (byte) (i * 31 + 7);
+        }
+        writeFile(garbage);
+
+        assertNull(new SnapshotStore(getContext()).load());
+    }
+
+    public void testLoadTruncatedFile() throws Exception {
+        SnapshotStore store = new SnapshotStore(getContext());
+        store.save(new ExtensionData().status("1"), new UnreadCountTable.Snapshot(
+                Arrays.asList(new Account(0, "Work", "uuid-0", 0)), new int[] { 1 }));
+        store.close();
+        awaitSnapshot();
+
+        byte[] contents = readFile();
+        for (int length = 0; length < contents.length; length++) {
+            writeFile(Arrays.copyOf(contents, length));
+            assertNull("Length " + length, new SnapshotStore(getContext()).load());
+        }
+    }
+
+    /**
+     * Waits until a snapshot written in the background can be read.
+     */
+    private SnapshotStore.Snapshot awaitSnapshot() {
+        long start = SystemClock.elapsedRealtime();
+        do {
+            SnapshotStore.Snapshot snapshot = new SnapshotStore(getContext()).load();
+            if (snapshot != null) {
+                return snapshot;
+            }
+            SystemClock.sleep(10);
+        } while (SystemClock.elapsedRealtime() - start < WRITE_TIMEOUT);
+
+        fail("Snapshot wasn't written within " + WRITE_TIMEOUT + " ms");
+        return null;
+    }
+
+    private byte[] readFile() throws Exception {
+        return new AtomicFile(
+                getContext().getFileStreamPath(SnapshotStore.FILE_NAME)).readFully();
+    }
+
+    private void writeFile(byte[] contents) throws Exception {
+        FileOutputStream out = getContext().openFileOutput(SnapshotStore.FILE_NAME,
+                Context.MODE_PRIVATE);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+}